@@ -0,0 +1,85 @@
+package com.singularity.ee.service.tagging.benchmark;
+
+import com.singularity.ee.service.tagging.AgentNodeProperties;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The node property getters a sync cycle calls, plain field reads of the published snapshot; run with the gc profiler
+ * (BenchmarkRunner adds it) to see the read path allocates nothing. The contended group has readers going while
+ * a writer keeps publishing new snapshots, as the node property listener does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AgentNodePropertiesBenchmark {
+    private AgentNodeProperties agentNodeProperties;
+    private long writes;
+
+    @Setup
+    public void setup() {
+        agentNodeProperties = new AgentNodeProperties();
+        agentNodeProperties.updateProperty(AgentNodeProperties.ENABLED_PROPERTY, "true");
+        agentNodeProperties.updateProperty(AgentNodeProperties.SYNC_FREQUENCY_PROPERTY, "20");
+        agentNodeProperties.updateProperty(AgentNodeProperties.BATCH_MAX_ENTITIES_PROPERTY, "100");
+        agentNodeProperties.updateProperty(AgentNodeProperties.CONTROLLER_RATE_PER_MINUTE_PROPERTY, "30");
+    }
+
+    @Benchmark
+    public boolean isEnabled() {
+        return agentNodeProperties.isEnabled();
+    }
+
+    /**
+     * Every getter once, set values and defaults mixed, roughly one sync cycle's worth of reads
+     */
+    @Benchmark
+    public void cycleReads( Blackhole blackhole ) {
+        blackhole.consume(agentNodeProperties.isEnabled());
+        blackhole.consume(agentNodeProperties.getSyncFrequencyMinutes());
+        blackhole.consume(agentNodeProperties.getForcePushCycles());
+        blackhole.consume(agentNodeProperties.getMetadataGateMaxSkippedCycles());
+        blackhole.consume(agentNodeProperties.isTierTaggingEnabled());
+        blackhole.consume(agentNodeProperties.isMachineTaggingEnabled());
+        blackhole.consume(agentNodeProperties.getBatchMaxEntities());
+        blackhole.consume(agentNodeProperties.getBatchMaxRetries());
+        blackhole.consume(agentNodeProperties.getControllerRequestsPerMinute());
+        blackhole.consume(agentNodeProperties.getControllerBurst());
+        blackhole.consume(agentNodeProperties.isGzipEnabled());
+        blackhole.consume(agentNodeProperties.getGzipMinBytes());
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public void contendedReads( Blackhole blackhole ) {
+        AgentNodeProperties.Snapshot snapshot = agentNodeProperties.snapshot();
+        blackhole.consume(snapshot.enabled);
+        blackhole.consume(snapshot.syncFrequencyMinutes);
+        blackhole.consume(snapshot.batchMaxEntities);
+        blackhole.consume(snapshot.controllerRequestsPerMinute);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public void contendedWrites() {
+        agentNodeProperties.updateProperty(AgentNodeProperties.SYNC_FREQUENCY_PROPERTY, Long.toString(1 + (writes++ & 63)));
+    }
+}
@@ -0,0 +1,64 @@
+package com.singularity.ee.service.tagging.benchmark;
+
+import com.singularity.ee.service.tagging.gcp.GCEInstanceParser;
+import com.singularity.ee.service.tagging.model.BatchTaggingRequest;
+import com.singularity.ee.service.tagging.model.EntityType;
+import com.singularity.ee.service.tagging.model.GCEInstance;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning a parsed instance into the tag map and the Node batch request, what every sync cycle does after the Compute call
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchTaggingRequestBenchmark {
+    @Param({"10", "50", "500"})
+    public int labels;
+
+    private GCEInstance instance;
+    private Map<String,String> tags;
+
+    @Setup
+    public void setup() throws IOException {
+        instance = new GCEInstanceParser(GCEInstance.DEFAULT_TAG_FIELDS).parse(new StringReader(BenchmarkFixtures.instanceJson(labels)));
+        tags = BatchTaggingRequest.buildTagMap(instance);
+    }
+
+    @Benchmark
+    public Map<String,String> buildTagMap() {
+        return BatchTaggingRequest.buildTagMap(instance);
+    }
+
+    @Benchmark
+    public BatchTaggingRequest buildRequest() {
+        BatchTaggingRequest request = new BatchTaggingRequest(EntityType.Node);
+        request.addEntity("app-server-7", 1234L, tags);
+        return request;
+    }
+
+    @Benchmark
+    public BatchTaggingRequest buildTagMapAndRequest() {
+        BatchTaggingRequest request = new BatchTaggingRequest(EntityType.Node);
+        request.addEntity("app-server-7", 1234L, BatchTaggingRequest.buildTagMap(instance));
+        return request;
+    }
+}
@@ -0,0 +1,57 @@
+package com.singularity.ee.service.tagging.benchmark;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compute instances.get responses shaped like real ones, with as many labels as a benchmark asks for
+ */
+public class BenchmarkFixtures {
+
+    public static Map<String,String> labels( int count ) {
+        Map<String,String> labels = new TreeMap<>();
+        for( int i = 0; i < count; i++ )
+            labels.put(String.format("label-key-%03d", i), "value-"+ i +"-"+ Integer.toHexString(i * 31 + 7));
+        return labels;
+    }
+
+    /**
+     * A full instance resource as Compute returns it without a fields= mask, disks, interfaces and metadata items included
+     */
+    public static String instanceJson( int labelCount ) {
+        StringBuilder json = new StringBuilder(2048 + labelCount * 48);
+        json.append("{\"kind\":\"compute#instance\",\"id\":\"4567890123456789012\",\"creationTimestamp\":\"2024-03-14T09:26:53.589-07:00\",")
+                .append("\"name\":\"app-server-7\",\"description\":\"application tier <primary> & friends\",")
+                .append("\"tags\":{\"items\":[\"http-server\",\"https-server\"],\"fingerprint\":\"6smc4R4d39I=\"},")
+                .append("\"machineType\":\"https://www.googleapis.com/compute/v1/projects/demo-project/zones/us-central1-a/machineTypes/e2-standard-4\",")
+                .append("\"status\":\"RUNNING\",\"zone\":\"https://www.googleapis.com/compute/v1/projects/demo-project/zones/us-central1-a\",")
+                .append("\"canIpForward\":false,\"networkInterfaces\":[{\"kind\":\"compute#networkInterface\",")
+                .append("\"network\":\"https://www.googleapis.com/compute/v1/projects/demo-project/global/networks/default\",")
+                .append("\"subnetwork\":\"https://www.googleapis.com/compute/v1/projects/demo-project/regions/us-central1/subnetworks/default\",")
+                .append("\"networkIP\":\"10.128.0.7\",\"name\":\"nic0\",\"accessConfigs\":[{\"kind\":\"compute#accessConfig\",\"type\":\"ONE_TO_ONE_NAT\",")
+                .append("\"name\":\"External NAT\",\"natIP\":\"34.66.12.34\",\"networkTier\":\"PREMIUM\"}],\"fingerprint\":\"0pYbTt3f0k8=\",\"stackType\":\"IPV4_ONLY\"}],")
+                .append("\"disks\":[{\"kind\":\"compute#attachedDisk\",\"type\":\"PERSISTENT\",\"mode\":\"READ_WRITE\",")
+                .append("\"source\":\"https://www.googleapis.com/compute/v1/projects/demo-project/zones/us-central1-a/disks/app-server-7\",")
+                .append("\"deviceName\":\"persistent-disk-0\",\"index\":0,\"boot\":true,\"autoDelete\":true,\"licenses\":[")
+                .append("\"https://www.googleapis.com/compute/v1/projects/debian-cloud/global/licenses/debian-12-bookworm\"],")
+                .append("\"interface\":\"SCSI\",\"diskSizeGb\":\"50\",\"architecture\":\"X86_64\"}],")
+                .append("\"metadata\":{\"kind\":\"compute#metadata\",\"fingerprint\":\"lE8wP0x8s9Q=\",\"items\":[")
+                .append("{\"key\":\"startup-script\",\"value\":\"#!/bin/bash\\napt-get update\\napt-get install -y openjdk-17-jre\\n\"},")
+                .append("{\"key\":\"enable-oslogin\",\"value\":\"TRUE\"}]},")
+                .append("\"serviceAccounts\":[{\"email\":\"123456789012-compute@developer.gserviceaccount.com\",")
+                .append("\"scopes\":[\"https://www.googleapis.com/auth/cloud-platform\"]}],")
+                .append("\"selfLink\":\"https://www.googleapis.com/compute/v1/projects/demo-project/zones/us-central1-a/instances/app-server-7\",")
+                .append("\"scheduling\":{\"onHostMaintenance\":\"MIGRATE\",\"automaticRestart\":true,\"preemptible\":false,\"provisioningModel\":\"STANDARD\"},")
+                .append("\"cpuPlatform\":\"Intel Broadwell\",\"labels\":{");
+        boolean first = true;
+        for( Map.Entry<String,String> label : labels(labelCount).entrySet() ) {
+            if( !first ) json.append(',');
+            json.append('"').append(label.getKey()).append("\":\"").append(label.getValue()).append('"');
+            first = false;
+        }
+        json.append("},\"labelFingerprint\":\"42WmSpB8rSM=\",\"startRestricted\":false,\"deletionProtection\":false,")
+                .append("\"shieldedInstanceConfig\":{\"enableSecureBoot\":false,\"enableVtpm\":true,\"enableIntegrityMonitoring\":true},")
+                .append("\"fingerprint\":\"PWGkUDLyuR8=\",\"lastStartTimestamp\":\"2024-03-14T09:27:01.117-07:00\"}");
+        return json.toString();
+    }
+}
@@ -0,0 +1,55 @@
+package com.singularity.ee.service.tagging.benchmark;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.singularity.ee.service.tagging.gcp.GCEInstanceParser;
+import com.singularity.ee.service.tagging.model.GCEInstance;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a full instances.get response, the streaming projection parser against a Gson tree of the whole resource.
+ * The tree stands in for Gson binding because the GCEInstance model cannot bind a full response, metadata items are an array there.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GCEInstanceParseBenchmark {
+    @Param({"10", "50", "500"})
+    public int labels;
+
+    private String json;
+    private GCEInstanceParser parser;
+
+    @Setup
+    public void setup() {
+        json = BenchmarkFixtures.instanceJson(labels);
+        parser = new GCEInstanceParser(GCEInstance.DEFAULT_TAG_FIELDS);
+    }
+
+    @Benchmark
+    public GCEInstance streamingParser() throws IOException {
+        return parser.parse(new StringReader(json));
+    }
+
+    @Benchmark
+    public JsonElement gsonTree() {
+        return JsonParser.parseReader(new StringReader(json));
+    }
+}
@@ -0,0 +1,66 @@
+package com.singularity.ee.service.tagging.benchmark;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.singularity.ee.service.tagging.model.BatchTaggingRequest;
+import com.singularity.ee.service.tagging.model.EntityType;
+import com.singularity.ee.service.tagging.model.TaggingJsonCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Producing the tagEntitiesInBatch request body, as bytes ready for the wire:
+ * the original pretty printed Gson String, compact Gson and the streaming TaggingJsonCodec
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+    @Param({"10", "50", "500"})
+    public int labels;
+
+    private BatchTaggingRequest request;
+    private Gson prettyGson;
+    private Gson compactGson;
+    private TaggingJsonCodec codec;
+
+    @Setup
+    public void setup() {
+        request = new BatchTaggingRequest(EntityType.Node);
+        request.addEntity("app-server-7", 1234L, BenchmarkFixtures.labels(labels));
+        prettyGson = new GsonBuilder().setPrettyPrinting().create();
+        compactGson = new Gson();
+        codec = new TaggingJsonCodec();
+    }
+
+    @Benchmark
+    public byte[] gsonPretty() {
+        return prettyGson.toJson(request).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] gsonCompact() {
+        return compactGson.toJson(request).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] codec() throws IOException {
+        return codec.toJsonBytes(request);
+    }
+}
@@ -0,0 +1,65 @@
+package com.singularity.ee.service.tagging.loadtest;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * What a stand-in endpoint does to a request before answering it: fixed latency plus random jitter,
+ * then a chance of a 500 and a chance of a 429 carrying Retry-After.
+ * Written on the command line as latency=50,jitter=20,error=0.01,throttle=0.02,retryAfter=1
+ */
+public class FaultProfile {
+    public static final FaultProfile NONE = new FaultProfile(0, 0, 0, 0, 1);
+
+    public final long latencyMillis;
+    public final long jitterMillis;
+    public final double errorRate;
+    public final double throttleRate;
+    public final int retryAfterSeconds;
+
+    public FaultProfile( long latencyMillis, long jitterMillis, double errorRate, double throttleRate, int retryAfterSeconds ) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.errorRate = errorRate;
+        this.throttleRate = throttleRate;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public static FaultProfile parse( String spec ) {
+        if( spec == null || spec.trim().isEmpty() ) return NONE;
+        long latency = 0, jitter = 0;
+        double error = 0, throttle = 0;
+        int retryAfter = 1;
+        for( String setting : spec.split(",") ) {
+            String[] pair = setting.split("=", 2);
+            if( pair.length != 2 ) throw new IllegalArgumentException("Fault setting is not name=value: "+ setting);
+            String value = pair[1].trim();
+            switch (pair[0].trim()) {
+                case "latency": latency = Long.parseLong(value); break;
+                case "jitter": jitter = Long.parseLong(value); break;
+                case "error": error = Double.parseDouble(value); break;
+                case "throttle": throttle = Double.parseDouble(value); break;
+                case "retryAfter": retryAfter = Integer.parseInt(value); break;
+                default: throw new IllegalArgumentException("Unknown fault setting: "+ pair[0]);
+            }
+        }
+        return new FaultProfile(latency, jitter, error, throttle, retryAfter);
+    }
+
+    /**
+     * Sleep for the configured latency and roll for a fault
+     * @return the status code to answer with instead of the real response, or -1 to answer normally
+     */
+    public int apply() throws InterruptedException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long delay = latencyMillis + (jitterMillis > 0 ? random.nextLong(jitterMillis + 1) : 0);
+        if( delay > 0 ) Thread.sleep(delay);
+        double roll = random.nextDouble();
+        if( roll < errorRate ) return 500;
+        if( roll < errorRate + throttleRate ) return 429;
+        return -1;
+    }
+
+    public String toString() {
+        return String.format("latency=%d,jitter=%d,error=%s,throttle=%s,retryAfter=%d", latencyMillis, jitterMillis, errorRate, throttleRate, retryAfterSeconds);
+    }
+}
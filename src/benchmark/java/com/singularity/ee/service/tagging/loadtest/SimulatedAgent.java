@@ -0,0 +1,92 @@
+package com.singularity.ee.service.tagging.loadtest;
+
+import com.singularity.ee.agent.appagent.kernel.ServiceComponent;
+import com.singularity.ee.agent.appagent.kernel.spi.IConfigurationChannel;
+import com.singularity.ee.agent.appagent.kernel.spi.IDynamicService;
+import com.singularity.ee.agent.appagent.kernel.spi.IServiceContext;
+import com.singularity.ee.service.tagging.AgentNodeProperties;
+import com.singularity.ee.service.tagging.task.GCPTaggingTask;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * One agent of the simulated fleet: a real GCPTaggingTask with its own transport, runtime conf directory and snapshot,
+ * the agent kernel around it mocked, pointed at the stand-in servers through tagging.properties
+ */
+public class SimulatedAgent {
+    private final int index;
+    private final AgentNodeProperties agentNodeProperties = new AgentNodeProperties();
+    private final GCPTaggingTask task;
+
+    public SimulatedAgent( int index, StandInServers servers, File workDirectory, File keyFile, String credentials, Map<String,String> nodeProperties ) throws Exception {
+        this.index = index;
+        File confDirectory = new File(workDirectory, "agent-"+ index);
+        if( !confDirectory.isDirectory() && !confDirectory.mkdirs() ) throw new IOException("Unable to create "+ confDirectory);
+        writeTaggingProperties(new File(confDirectory, "tagging.properties"), servers, keyFile, credentials);
+
+        agentNodeProperties.updateProperty(AgentNodeProperties.ENABLED_PROPERTY, "true");
+        for( Map.Entry<String,String> nodeProperty : nodeProperties.entrySet() )
+            agentNodeProperties.updateProperty(nodeProperty.getKey(), nodeProperty.getValue());
+
+        IConfigurationChannel configChannel = mock(IConfigurationChannel.class);
+        when(configChannel.getNodeID()).thenReturn(100000L + index);
+        when(configChannel.getComponentNodeName()).thenReturn("node-"+ index);
+        when(configChannel.getComponentID()).thenReturn(2000L + index % 20);
+        when(configChannel.getComponentName()).thenReturn("tier-"+ index % 20);
+        when(configChannel.getApplicationID()).thenReturn(42L);
+        when(configChannel.getApplicationName()).thenReturn("simulated-fleet");
+        ServiceComponent serviceComponent = mock(ServiceComponent.class, RETURNS_DEEP_STUBS);
+        when(serviceComponent.getConfigManager().getIConfigChannel()).thenReturn(configChannel);
+        IServiceContext serviceContext = mock(IServiceContext.class);
+        when(serviceContext.getRuntimeConfDir()).thenReturn(confDirectory.getAbsolutePath());
+        when(serviceContext.getBaseConfDir()).thenReturn(confDirectory.getAbsolutePath());
+        IDynamicService agentService = mock(IDynamicService.class);
+        when(agentService.getName()).thenReturn("GCPTaggingService");
+
+        this.task = new GCPTaggingTask(agentService, agentNodeProperties, serviceComponent, serviceContext);
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public GCPTaggingTask getTask() {
+        return task;
+    }
+
+    /**
+     * Run one sync cycle on the calling thread
+     * @return true if the cycle left the controller in sync
+     */
+    public boolean runCycle() {
+        task.run();
+        return task.isLastCycleSynced();
+    }
+
+    public void shutdown() {
+        task.shutdown();
+    }
+
+    private void writeTaggingProperties( File file, StandInServers servers, File keyFile, String credentials ) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("controller-url", servers.getControllerUrl());
+        properties.setProperty("controller-api-client", "simulated@customer1");
+        properties.setProperty("controller-api-secret", "not-a-secret");
+        properties.setProperty("gcp-credentials", credentials);
+        properties.setProperty("gcp-service-account-key-file", keyFile.getAbsolutePath());
+        properties.setProperty("gcp-metadata-url", servers.getMetadataUrl(index));
+        properties.setProperty("gcp-compute-url", servers.getComputeUrl());
+        try (OutputStream output = new FileOutputStream(file)) {
+            properties.store(output, "simulated agent "+ index);
+        }
+    }
+}
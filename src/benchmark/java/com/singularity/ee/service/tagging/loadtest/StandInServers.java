@@ -0,0 +1,334 @@
+package com.singularity.ee.service.tagging.loadtest;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * In process stand-ins for everything GCPTaggingTask talks to, on one loopback HttpServer:
+ * <ul>
+ *     <li>/agent-N/computeMetadata/v1/ the metadata server of simulated instance N, including its service account token</li>
+ *     <li>/token the Google oauth token endpoint, named as token_uri in the generated service account key</li>
+ *     <li>/compute/v1/projects/P/zones/Z/instances/sim-instance-N the Compute instances.get call</li>
+ *     <li>/controller/api/oauth/access_token, /controller/restui/tags/tagEntitiesInBatch and /controller/restui/tags on the controller</li>
+ * </ul>
+ * Each of metadata, gcp-token, compute and controller has its own FaultProfile. Every metadata read changes instance N
+ * with probability churn, new labels and fingerprints and a new ETag, so the fleet keeps producing uploads.
+ */
+public class StandInServers {
+    public static final String PROJECT_ID = "sim-project";
+    public static final String NUMERIC_PROJECT_ID = "314159265358";
+    public static final String ZONE = "us-central1-a";
+    public static final String[] ENDPOINTS = { "metadata", "gcp-token", "compute", "controller" };
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, FaultProfile> faults = new ConcurrentHashMap<>();
+    private final Map<String, EndpointStats> stats = new ConcurrentHashMap<>();
+    private final Map<Integer, AtomicInteger> instanceVersions = new ConcurrentHashMap<>();
+    private final Map<Long, AtomicLong> controllerRequestsPerSecond = new ConcurrentHashMap<>();
+    private final int labelCount;
+    private final double churn;
+
+    public static class EndpointStats {
+        public final AtomicLong requests = new AtomicLong();
+        public final AtomicLong injectedErrors = new AtomicLong();
+        public final AtomicLong injectedThrottles = new AtomicLong();
+        public final AtomicLong entitiesTagged = new AtomicLong();
+        public final AtomicLong gzipRequests = new AtomicLong();
+    }
+
+    public StandInServers( int threads, int labelCount, double churn ) throws IOException {
+        this.labelCount = labelCount;
+        this.churn = churn;
+        for( String endpoint : ENDPOINTS ) {
+            faults.put(endpoint, FaultProfile.NONE);
+            stats.put(endpoint, new EndpointStats());
+        }
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "StandInServer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", faulty("metadata", this::handleMetadata));
+        server.createContext("/token", faulty("gcp-token", this::handleGoogleToken));
+        server.createContext("/compute/", faulty("compute", this::handleCompute));
+        server.createContext("/controller/", faulty("controller", this::handleController));
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public String getBaseUrl() {
+        return "http://"+ server.getAddress().getAddress().getHostAddress() +":"+ server.getAddress().getPort();
+    }
+
+    public String getMetadataUrl( int agent ) {
+        return getBaseUrl() +"/agent-"+ agent +"/computeMetadata/v1/";
+    }
+
+    public String getComputeUrl() {
+        return getBaseUrl() +"/compute/v1/";
+    }
+
+    public String getTokenUrl() {
+        return getBaseUrl() +"/token";
+    }
+
+    public String getControllerUrl() {
+        return getBaseUrl();
+    }
+
+    public void setFault( String endpoint, FaultProfile faultProfile ) {
+        if( !faults.containsKey(endpoint) ) throw new IllegalArgumentException("Unknown endpoint: "+ endpoint);
+        faults.put(endpoint, faultProfile);
+    }
+
+    public EndpointStats getStats( String endpoint ) {
+        return stats.get(endpoint);
+    }
+
+    public Map<Long, AtomicLong> getControllerRequestsPerSecond() {
+        return controllerRequestsPerSecond;
+    }
+
+    public static String instanceName( int agent ) {
+        return "sim-instance-"+ agent;
+    }
+
+    private interface Handler {
+        void handle( HttpExchange exchange ) throws IOException;
+    }
+
+    private HttpHandler faulty( String endpoint, Handler handler ) {
+        return exchange -> {
+            try {
+                stats.get(endpoint).requests.incrementAndGet();
+                if( endpoint.equals("controller") )
+                    controllerRequestsPerSecond.computeIfAbsent(System.currentTimeMillis() / 1000, k -> new AtomicLong()).incrementAndGet();
+                FaultProfile faultProfile = faults.get(endpoint);
+                int injected = faultProfile.apply();
+                if( injected == 429 ) {
+                    stats.get(endpoint).injectedThrottles.incrementAndGet();
+                    exchange.getResponseHeaders().add("Retry-After", String.valueOf(faultProfile.retryAfterSeconds));
+                    respond(exchange, 429, "{\"error\":\"rate limited\"}");
+                } else if( injected > 0 ) {
+                    stats.get(endpoint).injectedErrors.incrementAndGet();
+                    respond(exchange, injected, "{\"error\":\"injected failure\"}");
+                } else {
+                    handler.handle(exchange);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                respond(exchange, 503, "");
+            } catch (RuntimeException e) {
+                respond(exchange, 500, "{\"error\":\""+ e.getClass().getSimpleName() +"\"}");
+            } finally {
+                exchange.close();
+            }
+        };
+    }
+
+    private void handleMetadata( HttpExchange exchange ) throws IOException {
+        String[] path = exchange.getRequestURI().getPath().split("/");
+        if( path.length < 4 || !path[1].startsWith("agent-") || !"Google".equals(exchange.getRequestHeaders().getFirst("Metadata-Flavor")) ) {
+            respond(exchange, 404, "");
+            return;
+        }
+        int agent = Integer.parseInt(path[1].substring("agent-".length()));
+        if( exchange.getRequestURI().getPath().endsWith("/instance/service-accounts/default/token") ) {
+            respond(exchange, 200, "{\"access_token\":\"ya29.metadata-"+ agent +"-"+ Long.toHexString(System.nanoTime()) +"\",\"expires_in\":3599,\"token_type\":\"Bearer\"}");
+            return;
+        }
+        AtomicInteger version = instanceVersions.computeIfAbsent(agent, k -> new AtomicInteger());
+        if( churn > 0 && ThreadLocalRandom.current().nextDouble() < churn ) version.incrementAndGet();
+
+        JsonObject instance = new JsonObject();
+        instance.addProperty("id", String.valueOf(1000000L + agent));
+        instance.addProperty("name", instanceName(agent));
+        instance.addProperty("hostname", instanceName(agent) +"."+ ZONE +".c."+ PROJECT_ID +".internal");
+        instance.addProperty("zone", "projects/"+ NUMERIC_PROJECT_ID +"/zones/"+ ZONE);
+        instance.addProperty("image", "projects/debian-cloud/global/images/debian-12-bookworm-v20240312");
+        JsonObject scheduling = new JsonObject();
+        scheduling.addProperty("preemptible", "FALSE");
+        instance.add("scheduling", scheduling);
+        JsonObject networkInterface = new JsonObject();
+        networkInterface.addProperty("ip", "10.128."+ (agent / 250) +"."+ (agent % 250 + 2));
+        networkInterface.addProperty("network", "projects/"+ NUMERIC_PROJECT_ID +"/networks/default");
+        JsonArray networkInterfaces = new JsonArray();
+        networkInterfaces.add(networkInterface);
+        instance.add("networkInterfaces", networkInterfaces);
+        JsonObject project = new JsonObject();
+        project.addProperty("projectId", PROJECT_ID);
+        project.addProperty("numericProjectId", Long.parseLong(NUMERIC_PROJECT_ID));
+        JsonObject tree = new JsonObject();
+        tree.add("instance", instance);
+        tree.add("project", project);
+
+        exchange.getResponseHeaders().add("ETag", "etag-"+ agent +"-"+ version.get());
+        exchange.getResponseHeaders().add("Metadata-Flavor", "Google");
+        respond(exchange, 200, tree.toString());
+    }
+
+    private void handleGoogleToken( HttpExchange exchange ) throws IOException {
+        readBody(exchange);
+        respond(exchange, 200, "{\"access_token\":\"ya29.stand-in-"+ Long.toHexString(System.nanoTime()) +"\",\"expires_in\":3600,\"token_type\":\"Bearer\"}");
+    }
+
+    private void handleCompute( HttpExchange exchange ) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if( authorization == null || !authorization.startsWith("Bearer ") ) {
+            respond(exchange, 401, "{\"error\":\"unauthenticated\"}");
+            return;
+        }
+        int marker = path.lastIndexOf("/instances/sim-instance-");
+        if( !path.startsWith("/compute/v1/projects/"+ PROJECT_ID +"/zones/"+ ZONE +"/") || marker < 0 ) {
+            respond(exchange, 404, "{\"error\":\"not found\"}");
+            return;
+        }
+        int agent = Integer.parseInt(path.substring(marker + "/instances/sim-instance-".length()));
+        int version = instanceVersions.computeIfAbsent(agent, k -> new AtomicInteger()).get();
+
+        JsonObject instance = new JsonObject();
+        instance.addProperty("id", String.valueOf(1000000L + agent));
+        instance.addProperty("name", instanceName(agent));
+        instance.addProperty("description", "simulated instance "+ agent);
+        String zoneUrl = "https://www.googleapis.com/compute/v1/projects/"+ PROJECT_ID +"/zones/"+ ZONE;
+        instance.addProperty("zone", zoneUrl);
+        instance.addProperty("machineType", zoneUrl +"/machineTypes/e2-standard-4");
+        instance.addProperty("status", "RUNNING");
+        instance.addProperty("selfLink", zoneUrl +"/instances/"+ instanceName(agent));
+        instance.addProperty("cpuPlatform", "Intel Broadwell");
+        JsonObject reservationAffinity = new JsonObject();
+        reservationAffinity.addProperty("consumeReservationType", "ANY_RESERVATION");
+        instance.add("reservationAffinity", reservationAffinity);
+        JsonObject labels = new JsonObject();
+        for( int i = 0; i < labelCount; i++ )
+            labels.addProperty(String.format("label-%03d", i), "value-"+ i);
+        labels.addProperty("sim-version", String.valueOf(version));
+        instance.add("labels", labels);
+        instance.addProperty("labelFingerprint", "lf-"+ agent +"-"+ version);
+        instance.addProperty("fingerprint", "f-"+ agent +"-"+ version);
+        respond(exchange, 200, instance.toString());
+    }
+
+    private void handleController( HttpExchange exchange ) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String method = exchange.getRequestMethod();
+        byte[] body = readBody(exchange);
+        if( path.equals("/controller/api/oauth/access_token") && method.equals("POST") ) {
+            respond(exchange, 200, "{\"access_token\":\"controller-"+ Long.toHexString(System.nanoTime()) +"\",\"expires_in\":300}");
+            return;
+        }
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if( authorization == null || !authorization.startsWith("Bearer controller-") ) {
+            respond(exchange, 401, "");
+            return;
+        }
+        if( path.equals("/controller/restui/tags/tagEntitiesInBatch") && method.equals("POST") ) {
+            JsonObject request = JsonParser.parseReader(new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8)).getAsJsonObject();
+            JsonArray entityIds = new JsonArray();
+            for( JsonElement entity : request.getAsJsonArray("entities") )
+                entityIds.add(entity.getAsJsonObject().get("entityId").getAsLong());
+            stats.get("controller").entitiesTagged.addAndGet(entityIds.size());
+            JsonObject success = new JsonObject();
+            success.addProperty("count", entityIds.size());
+            success.add("entityIds", entityIds);
+            JsonObject failure = new JsonObject();
+            failure.addProperty("count", 0);
+            failure.add("entityIds", new JsonArray());
+            JsonObject response = new JsonObject();
+            response.addProperty("entityType", request.get("entityType").getAsString());
+            response.add("success", success);
+            response.add("failure", failure);
+            respond(exchange, 200, response.toString());
+        } else if( path.equals("/controller/restui/tags") && method.equals("DELETE") ) {
+            respond(exchange, 204, "");
+        } else {
+            respond(exchange, 404, "");
+        }
+    }
+
+    private byte[] readBody( HttpExchange exchange ) throws IOException {
+        InputStream input = exchange.getRequestBody();
+        if( "gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding")) ) {
+            stats.get("controller").gzipRequests.incrementAndGet();
+            input = new GZIPInputStream(input);
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) != -1)
+            output.write(buffer, 0, read);
+        return output.toByteArray();
+    }
+
+    private void respond( HttpExchange exchange, int status, String body ) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        if( status == 204 || bytes.length == 0 ) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if( acceptEncoding != null && acceptEncoding.contains("gzip") ) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                gzip.write(bytes);
+            }
+            bytes = compressed.toByteArray();
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+        }
+        exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(bytes);
+        }
+    }
+
+    /**
+     * Requests per second on the controller, indexed from the first second that saw one
+     */
+    public long[] getControllerRequestRateSeries() {
+        TreeMap<Long, AtomicLong> sorted = new TreeMap<>(controllerRequestsPerSecond);
+        if( sorted.isEmpty() ) return new long[0];
+        long first = sorted.firstKey();
+        long last = sorted.lastKey();
+        long[] series = new long[(int) (last - first + 1)];
+        for( Map.Entry<Long, AtomicLong> entry : sorted.entrySet() )
+            series[(int) (entry.getKey() - first)] = entry.getValue().get();
+        return series;
+    }
+}
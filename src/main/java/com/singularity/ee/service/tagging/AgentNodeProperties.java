@@ -5,41 +5,144 @@ import com.singularity.ee.agent.util.log4j.ADLoggerFactory;
 import com.singularity.ee.agent.util.log4j.IADLogger;
 import com.singularity.ee.util.string.StringOperations;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Observable;
 
+/**
+ * The node properties of this service. Every update builds a new immutable Snapshot with all typed values parsed once,
+ * and publishes it through a volatile reference: readers never lock, never parse and never allocate, and a reader
+ * holding one Snapshot sees all of its values from the same update. Updates come from one listener thread, they are
+ * serialized anyway so two concurrent ones cannot lose each other.
+ */
 public class AgentNodeProperties extends Observable {
     private static final IADLogger logger = ADLoggerFactory.getLogger((String)"com.singularity.dynamicservice.tagging.AgentNodeProperties");
     public static final String ENABLED_PROPERTY = "agent.tagging.enabled";
     public static final String SYNC_FREQUENCY_PROPERTY = "agent.tagging.frequency.minutes";
-    public static final String[] NODE_PROPERTIES = new String[]{ENABLED_PROPERTY, SYNC_FREQUENCY_PROPERTY};
-    private final Map<String, String> properties = new HashMap<>();
+    public static final String FORCE_PUSH_CYCLES_PROPERTY = "agent.tagging.forcePush.cycles";
+    public static final String METADATA_GATE_MAX_SKIPPED_CYCLES_PROPERTY = "agent.tagging.metadataGate.maxSkippedCycles";
+    public static final String TAG_TIER_PROPERTY = "agent.tagging.tier.enabled";
+    public static final String TAG_MACHINE_PROPERTY = "agent.tagging.machine.enabled";
+    public static final String BATCH_MAX_ENTITIES_PROPERTY = "agent.tagging.batch.maxEntities";
+    public static final String BATCH_MAX_RETRIES_PROPERTY = "agent.tagging.batch.maxRetries";
+    public static final String CONTROLLER_RATE_PER_MINUTE_PROPERTY = "agent.tagging.controller.maxRequestsPerMinute";
+    public static final String CONTROLLER_BURST_PROPERTY = "agent.tagging.controller.burst";
+    public static final String GZIP_ENABLED_PROPERTY = "agent.tagging.gzip.enabled";
+    public static final String GZIP_MIN_BYTES_PROPERTY = "agent.tagging.gzip.minBytes";
+    public static final String CYCLE_DEADLINE_PROPERTY = "agent.tagging.cycle.deadlineSeconds";
+    public static final String TAGS_MAX_COUNT_PROPERTY = "agent.tagging.tags.maxCount";
+    public static final String TAGS_MAX_VALUE_LENGTH_PROPERTY = "agent.tagging.tags.maxValueLength";
+    public static final String TAGS_ALLOW_PROPERTY = "agent.tagging.tags.allow";
+    public static final String TAGS_DENY_PROPERTY = "agent.tagging.tags.deny";
+    public static final String TAGS_PRIORITY_PROPERTY = "agent.tagging.tags.priority";
+    public static final String HOST_CACHE_TTL_PROPERTY = "agent.tagging.hostCache.ttlSeconds";
+    public static final String PASSIVE_PROPERTY = "agent.tagging.passive";
+    public static final String STATIC_FIELDS_TTL_PROPERTY = "agent.tagging.staticFields.ttlMinutes";
+    public static final String DEFAULT_TAGS_PRIORITY = "GCP|id,GCP|name,GCP|zone,GCP|machineType,GCP|status,GCP|*,GCP|Metadata|**,GCP|Label|**";
+    public static final String[] NODE_PROPERTIES = new String[]{ENABLED_PROPERTY, SYNC_FREQUENCY_PROPERTY, FORCE_PUSH_CYCLES_PROPERTY, METADATA_GATE_MAX_SKIPPED_CYCLES_PROPERTY,
+            TAG_TIER_PROPERTY, TAG_MACHINE_PROPERTY, BATCH_MAX_ENTITIES_PROPERTY, BATCH_MAX_RETRIES_PROPERTY, CONTROLLER_RATE_PER_MINUTE_PROPERTY, CONTROLLER_BURST_PROPERTY,
+            GZIP_ENABLED_PROPERTY, GZIP_MIN_BYTES_PROPERTY, CYCLE_DEADLINE_PROPERTY, TAGS_MAX_COUNT_PROPERTY, TAGS_MAX_VALUE_LENGTH_PROPERTY, TAGS_ALLOW_PROPERTY,
+            TAGS_DENY_PROPERTY, TAGS_PRIORITY_PROPERTY, HOST_CACHE_TTL_PROPERTY, PASSIVE_PROPERTY, STATIC_FIELDS_TTL_PROPERTY};
+    private volatile Snapshot snapshot = new Snapshot(Collections.<String, String>emptyMap());
 
-    public void initializeConfigs(IServiceConfig serviceConfig) {
+    public static final class Snapshot {
+        private final Map<String, String> properties;
+        public final boolean enabled;
+        public final long syncFrequencyMinutes;
+        public final long forcePushCycles;
+        public final long metadataGateMaxSkippedCycles;
+        public final boolean tierTaggingEnabled;
+        public final boolean machineTaggingEnabled;
+        public final int batchMaxEntities;
+        public final int batchMaxRetries;
+        public final long controllerRequestsPerMinute;
+        public final long controllerBurst;
+        public final boolean gzipEnabled;
+        public final int gzipMinBytes;
+        public final long cycleDeadlineSeconds;
+        public final int tagsMaxCount;
+        public final int tagsMaxValueLength;
+        public final String tagsAllow;
+        public final String tagsDeny;
+        public final String tagsPriority;
+        public final long hostCacheTtlSeconds;
+        public final boolean passive;
+        public final long staticFieldsTtlMinutes;
+
+        private Snapshot( Map<String, String> properties ) {
+            this.properties = properties;
+            this.enabled = StringOperations.safeParseBoolean((String)properties.get(ENABLED_PROPERTY), (boolean)false);
+            this.syncFrequencyMinutes = StringOperations.safeParseLong((String)properties.get(SYNC_FREQUENCY_PROPERTY), (long)20);
+            this.forcePushCycles = StringOperations.safeParseLong((String)properties.get(FORCE_PUSH_CYCLES_PROPERTY), (long)10);
+            this.metadataGateMaxSkippedCycles = StringOperations.safeParseLong((String)properties.get(METADATA_GATE_MAX_SKIPPED_CYCLES_PROPERTY), (long)1);
+            this.tierTaggingEnabled = StringOperations.safeParseBoolean((String)properties.get(TAG_TIER_PROPERTY), (boolean)false);
+            this.machineTaggingEnabled = StringOperations.safeParseBoolean((String)properties.get(TAG_MACHINE_PROPERTY), (boolean)false);
+            this.batchMaxEntities = (int) StringOperations.safeParseLong((String)properties.get(BATCH_MAX_ENTITIES_PROPERTY), (long)100);
+            this.batchMaxRetries = (int) StringOperations.safeParseLong((String)properties.get(BATCH_MAX_RETRIES_PROPERTY), (long)2);
+            this.controllerRequestsPerMinute = StringOperations.safeParseLong((String)properties.get(CONTROLLER_RATE_PER_MINUTE_PROPERTY), (long)30);
+            this.controllerBurst = StringOperations.safeParseLong((String)properties.get(CONTROLLER_BURST_PROPERTY), (long)5);
+            this.gzipEnabled = StringOperations.safeParseBoolean((String)properties.get(GZIP_ENABLED_PROPERTY), (boolean)true);
+            this.gzipMinBytes = (int) StringOperations.safeParseLong((String)properties.get(GZIP_MIN_BYTES_PROPERTY), (long)1024);
+            this.cycleDeadlineSeconds = Math.max(1, StringOperations.safeParseLong((String)properties.get(CYCLE_DEADLINE_PROPERTY), (long)120));
+            this.tagsMaxCount = (int) StringOperations.safeParseLong((String)properties.get(TAGS_MAX_COUNT_PROPERTY), (long)0);
+            this.tagsMaxValueLength = (int) StringOperations.safeParseLong((String)properties.get(TAGS_MAX_VALUE_LENGTH_PROPERTY), (long)0);
+            this.tagsAllow = properties.get(TAGS_ALLOW_PROPERTY);
+            this.tagsDeny = properties.get(TAGS_DENY_PROPERTY);
+            this.tagsPriority = properties.containsKey(TAGS_PRIORITY_PROPERTY) ? properties.get(TAGS_PRIORITY_PROPERTY) : DEFAULT_TAGS_PRIORITY;
+            this.hostCacheTtlSeconds = StringOperations.safeParseLong((String)properties.get(HOST_CACHE_TTL_PROPERTY), (long)300);
+            this.passive = StringOperations.safeParseBoolean((String)properties.get(PASSIVE_PROPERTY), (boolean)false);
+            this.staticFieldsTtlMinutes = Math.max(0, StringOperations.safeParseLong((String)properties.get(STATIC_FIELDS_TTL_PROPERTY), (long)0));
+        }
+
+        public String getProperty( String name ) {
+            return properties.get(name);
+        }
+
+        public String toString() {
+            return properties.toString();
+        }
+    }
+
+    public synchronized void initializeConfigs(IServiceConfig serviceConfig) {
         Map configProperties = serviceConfig.getConfigProperties();
         if( configProperties != null ) {
             boolean enabled = StringOperations.safeParseBoolean((String)((String)configProperties.get(ENABLED_PROPERTY)), (boolean)false);
-            this.properties.put(ENABLED_PROPERTY, Boolean.toString(enabled));
+            publish(ENABLED_PROPERTY, Boolean.toString(enabled));
             logger.info("Initializing the properties " + this);
         } else {
             logger.error("Config properties map is null?!?!");
         }
     }
 
+    /**
+     * @return all properties as of the last update, read several values from one of these when they have to agree with each other
+     */
+    public Snapshot snapshot() {
+        return this.snapshot;
+    }
+
     public String getProperty( String name ) {
-        return this.properties.get(name);
+        return this.snapshot.getProperty(name);
     }
 
     public void updateProperty( String name, String value ) {
-        String existingPropertyValue = this.properties.get(name);
-        if( !StringOperations.isEmpty((String)value) && !value.equals(existingPropertyValue)) {
-            this.properties.put(name, value);
+        synchronized (this) {
+            String existingPropertyValue = this.snapshot.getProperty(name);
+            if( StringOperations.isEmpty((String)value) || value.equals(existingPropertyValue) ) {
+                logger.info("did not update property = " + name + " because it was either unchanged or empty");
+                return;
+            }
+            publish(name, value);
             logger.info("updated property = " + name + " with value = " + value);
-            this.notifyMonitoringService(name);
-        } else {
-            logger.info("did not update property = " + name + " because it was either unchanged or empty");
         }
+        this.notifyMonitoringService(name); //outside the lock, observers may read properties or reschedule
+    }
+
+    private void publish( String name, String value ) {
+        Map<String, String> properties = new HashMap<>(this.snapshot.properties);
+        properties.put(name, value);
+        this.snapshot = new Snapshot(Collections.unmodifiableMap(properties));
     }
 
     protected void notifyMonitoringService(String name) {
@@ -48,14 +151,97 @@ public class AgentNodeProperties extends Observable {
     }
 
     public String toString() {
-        return "AgentNodeProperties{properties=" + this.properties + '}';
+        return "AgentNodeProperties{properties=" + this.snapshot + '}';
     }
 
     public boolean isEnabled() {
-        return StringOperations.safeParseBoolean((String)this.getProperty(ENABLED_PROPERTY), (boolean)false);
+        return this.snapshot.enabled;
     }
 
     public long getSyncFrequencyMinutes () {
-        return StringOperations.safeParseLong((String)this.getProperty(SYNC_FREQUENCY_PROPERTY), (long)20);
+        return this.snapshot.syncFrequencyMinutes;
+    }
+
+    public long getForcePushCycles () {
+        return this.snapshot.forcePushCycles;
+    }
+
+    /**
+     * @return how many cycles in a row may skip the Compute fetch while the metadata ETag is unchanged, labels are not in
+     * the metadata tree so a label change can wait this many cycles; 0 fetches every cycle
+     */
+    public long getMetadataGateMaxSkippedCycles () {
+        return this.snapshot.metadataGateMaxSkippedCycles;
+    }
+
+    public boolean isTierTaggingEnabled () {
+        return this.snapshot.tierTaggingEnabled;
+    }
+
+    public boolean isMachineTaggingEnabled () {
+        return this.snapshot.machineTaggingEnabled;
+    }
+
+    public int getBatchMaxEntities () {
+        return this.snapshot.batchMaxEntities;
+    }
+
+    public int getBatchMaxRetries () {
+        return this.snapshot.batchMaxRetries;
+    }
+
+    public long getControllerRequestsPerMinute () {
+        return this.snapshot.controllerRequestsPerMinute;
+    }
+
+    public long getControllerBurst () {
+        return this.snapshot.controllerBurst;
+    }
+
+    public boolean isGzipEnabled () {
+        return this.snapshot.gzipEnabled;
+    }
+
+    public int getGzipMinBytes () {
+        return this.snapshot.gzipMinBytes;
+    }
+
+    public long getCycleDeadlineSeconds () {
+        return this.snapshot.cycleDeadlineSeconds;
+    }
+
+    /**
+     * @return most tags sent per entity, 0, the default, sends every tag; a limit has to be asked for
+     */
+    public int getTagsMaxCount () {
+        return this.snapshot.tagsMaxCount;
+    }
+
+    /**
+     * @return longest tag value sent, longer values are cut; 0, the default, sends values as they are
+     */
+    public int getTagsMaxValueLength () {
+        return this.snapshot.tagsMaxValueLength;
+    }
+
+    /**
+     * @return how long one JVM's metadata read and Compute fetch are shared with the other JVMs on the host, 0 turns sharing off
+     */
+    public long getHostCacheTtlSeconds () {
+        return this.snapshot.hostCacheTtlSeconds;
+    }
+
+    /**
+     * @return true when a fleet tagger tags this node from outside, the agent then leaves GCP and the controller alone
+     */
+    public boolean isPassive () {
+        return this.snapshot.passive;
+    }
+
+    /**
+     * @return how long the static instance fields are kept before Compute is asked for them again, 0 keeps them while the agent runs
+     */
+    public long getStaticFieldsTtlMinutes () {
+        return this.snapshot.staticFieldsTtlMinutes;
     }
 }
@@ -11,18 +11,20 @@ import com.singularity.ee.agent.appagent.kernel.spi.exception.ServiceStartExcept
 import com.singularity.ee.agent.appagent.kernel.spi.exception.ServiceStopException;
 import com.singularity.ee.agent.util.log4j.ADLoggerFactory;
 import com.singularity.ee.agent.util.log4j.IADLogger;
-import com.singularity.ee.service.tagging.exception.ConfigurationException;
-import com.singularity.ee.service.tagging.exception.NotRunningOnException;
 import com.singularity.ee.service.tagging.task.GCPTaggingTask;
+import com.singularity.ee.service.tagging.task.SyncCycleRunner;
+import com.singularity.ee.service.tagging.task.SyncSplay;
 import com.singularity.ee.service.tagging.task.TaggingMetricTask;
 import com.singularity.ee.util.javaspecific.threads.IAgentRunnable;
 import com.singularity.ee.util.spi.AgentTimeUnit;
 import com.singularity.ee.util.spi.IAgentScheduledExecutorService;
 import com.singularity.ee.util.spi.IAgentScheduledFuture;
 
+import java.util.Observable;
+import java.util.Observer;
 import java.util.Properties;
 
-public class TaggingService implements IDynamicService {
+public class TaggingService implements IDynamicService, Observer {
 
     private AgentNodeProperties agentNodeProperties = new AgentNodeProperties();
     private static final IADLogger logger = ADLoggerFactory.getLogger((String)"com.singularity.dynamicservice.tagging.TaggingService");
@@ -30,10 +32,11 @@ public class TaggingService implements IDynamicService {
     private IAgentScheduledFuture scheduledTaskFuture, scheduledMetricTaskFuture;
     private final ServiceComponent serviceComponent = LifeCycleManager.getInjector();
     private long taskInitialDelay=0;
-    private long taskInterval=180; //every 3 minutes
+    private long taskInterval=60; //never sync more often than once a minute, whatever the frequency property says
     private IAgentScheduledExecutorService scheduler;
     private IServiceContext iServiceContext;
     private IDynamicServiceManager dynamicServiceManager;
+    private SyncCycleRunner syncCycleRunner;
 
     public TaggingService () {
         logger.info(String.format("Initializing Agent %s %s build date %s by %s visit %s for the most up to date information.",
@@ -65,7 +68,7 @@ public class TaggingService implements IDynamicService {
     }
 
     @Override
-    public void start() throws ServiceStartException {
+    public synchronized void start() throws ServiceStartException {
         new AgentNodePropertyListener(this);
         if( this.isServiceStarted ) {
             logger.info("Agent " + this.getName() + " is already started");
@@ -77,30 +80,56 @@ public class TaggingService implements IDynamicService {
         if (this.serviceComponent == null) {
             throw new ServiceStartException("Dagger not initialised, so cannot start the "+ MetaData.SERVICENAME);
         }
-        this.scheduledTaskFuture = this.scheduler.scheduleAtFixedRate(this.createTask(this.serviceComponent), 0, this.taskInterval, AgentTimeUnit.SECONDS);
+        this.createTask(this.serviceComponent);
+        long initialDelay = this.taskInitialDelay + SyncSplay.offsetSeconds(SyncSplay.nodeKey(this.serviceComponent, this.iServiceContext), getSyncIntervalSeconds());
+        scheduleSync(initialDelay);
         this.scheduledMetricTaskFuture = this.scheduler.scheduleAtFixedRate(this.createMetricTask(this.serviceComponent), 0, 60, AgentTimeUnit.SECONDS);
+        this.agentNodeProperties.addObserver(this);
         this.isServiceStarted = true;
-        logger.info("Started " + this.getName() + " with initial delay " + this.taskInitialDelay + ", and with interval " + this.taskInterval + " in Seconds");
+        logger.info("Started " + this.getName() + " with initial delay " + initialDelay + " (including node splay), and with interval " + getSyncIntervalSeconds() + " in Seconds");
 
     }
 
+    /**
+     * Called by AgentNodeProperties when a node property changes, so we act on it now instead of on the next sync
+     */
+    @Override
+    public synchronized void update(Observable observable, Object propertyName) {
+        if( !this.isServiceStarted || this.syncCycleRunner == null ) return;
+        if( AgentNodeProperties.ENABLED_PROPERTY.equals(propertyName) && this.agentNodeProperties.isEnabled() ) {
+            logger.info(MetaData.SERVICENAME +" enabled, syncing now");
+            this.syncCycleRunner.run(); //only hands the cycle to the runner's own thread
+        } else if( AgentNodeProperties.PASSIVE_PROPERTY.equals(propertyName) && !this.agentNodeProperties.isPassive() ) {
+            logger.info(MetaData.SERVICENAME +" no longer passive, syncing now");
+            this.syncCycleRunner.run();
+        } else if( AgentNodeProperties.SYNC_FREQUENCY_PROPERTY.equals(propertyName) ) {
+            long interval = getSyncIntervalSeconds();
+            long lastCycleStart = this.syncCycleRunner.getLastCycleStartMillis();
+            long initialDelay = lastCycleStart == 0 ? SyncSplay.offsetSeconds(SyncSplay.nodeKey(this.serviceComponent, this.iServiceContext), interval)
+                    : Math.max(0, interval - (System.currentTimeMillis() - lastCycleStart) / 1000);
+            logger.info("Sync frequency changed, rescheduling with initial delay " + initialDelay + " and interval " + interval + " in Seconds");
+            scheduleSync(initialDelay);
+        }
+    }
+
+    private long getSyncIntervalSeconds() {
+        return Math.max(this.taskInterval, this.agentNodeProperties.getSyncFrequencyMinutes() * 60);
+    }
+
+    private synchronized void scheduleSync(long initialDelay) {
+        if (this.scheduledTaskFuture != null) this.scheduledTaskFuture.cancel(false);
+        this.scheduledTaskFuture = this.scheduler.scheduleAtFixedRate(this.syncCycleRunner, initialDelay, getSyncIntervalSeconds(), AgentTimeUnit.SECONDS);
+    }
+
     private IAgentRunnable createMetricTask(ServiceComponent serviceComponent) {
         logger.info("Creating Metric Sending Task for "+ MetaData.SERVICENAME);
-        return new TaggingMetricTask( this, this.agentNodeProperties, serviceComponent, iServiceContext);
+        return new TaggingMetricTask( this, this.agentNodeProperties, serviceComponent, iServiceContext, this.syncCycleRunner);
     }
 
-    private IAgentRunnable createTask(ServiceComponent serviceComponent) {
+    private void createTask(ServiceComponent serviceComponent) {
         logger.info("Creating Task for "+ MetaData.SERVICENAME);
-        try {
-            try {
-                return new GCPTaggingTask(this, this.agentNodeProperties, serviceComponent, iServiceContext);
-            } catch (NotRunningOnException notRunningOnException) {
-                    logger.debug("This agent doesn't seem to be running on Google Cloud");
-            }
-        } catch (ConfigurationException e) {
-            logger.error("Not able to start Google Cloud Tag Service Task: "+ e.toString());
-        }
-        return null;
+        //the task is created by the first sync cycle on its own thread, GCP detection and config loading never hold up the agent start
+        this.syncCycleRunner = new SyncCycleRunner(() -> new GCPTaggingTask(this, this.agentNodeProperties, serviceComponent, iServiceContext), this.agentNodeProperties);
     }
 
     @Override
@@ -109,11 +138,12 @@ public class TaggingService implements IDynamicService {
     }
 
     @Override
-    public void stop() throws ServiceStopException {
+    public synchronized void stop() throws ServiceStopException {
         if (!this.isServiceStarted) {
             logger.info("Service " + this.getName() + " not running");
             return;
         }
+        this.agentNodeProperties.deleteObserver(this);
         if (this.scheduledTaskFuture != null && !this.scheduledTaskFuture.isCancelled() && !this.scheduledTaskFuture.isDone()) {
             this.scheduledTaskFuture.cancel(true);
             this.scheduledTaskFuture = null;
@@ -121,6 +151,10 @@ public class TaggingService implements IDynamicService {
             this.scheduledMetricTaskFuture = null;
             this.isServiceStarted = false;
         }
+        if (this.syncCycleRunner != null) {
+            this.syncCycleRunner.shutdown();
+            this.syncCycleRunner = null;
+        }
     }
 
     @Override
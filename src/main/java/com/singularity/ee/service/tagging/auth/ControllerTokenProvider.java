@@ -0,0 +1,135 @@
+package com.singularity.ee.service.tagging.auth;
+
+import com.singularity.ee.agent.util.log4j.ADLoggerFactory;
+import com.singularity.ee.agent.util.log4j.IADLogger;
+import com.singularity.ee.service.tagging.exception.CommunicationErrorException;
+import com.singularity.ee.service.tagging.exception.HttpStatusException;
+import com.singularity.ee.service.tagging.http.HttpCall;
+import com.singularity.ee.service.tagging.http.HttpResult;
+import com.singularity.ee.service.tagging.http.HttpTransport;
+import com.singularity.ee.service.tagging.http.RetryPolicy;
+import com.singularity.ee.service.tagging.model.AccessToken;
+import com.singularity.ee.service.tagging.model.TaggingJsonCodec;
+
+import java.io.Reader;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caches the controller OAuth bearer token between syncs.
+ * The token is reused until it gets close to expiring, then exactly one caller refreshes it while
+ * any other caller keeps using the still valid token; only when the token is fully expired do callers wait on the refresh.
+ */
+public class ControllerTokenProvider {
+    private static final IADLogger logger = ADLoggerFactory.getLogger((String)"com.singularity.dynamicservice.tagging.ControllerTokenProvider");
+    private static final long MAX_REFRESH_WINDOW_MILLIS = 60000; //refresh no earlier than a minute ahead of expiration
+
+    private final String controllerUrl;
+    private final String clientId;
+    private final String clientSecret;
+    private final HttpTransport transport;
+    private final ReentrantLock refreshLock = new ReentrantLock();
+    private volatile AccessToken accessToken;
+
+    public ControllerTokenProvider( String controllerUrl, String clientId, String clientSecret, HttpTransport transport ) {
+        this.controllerUrl = controllerUrl;
+        this.clientId = clientId;
+        this.clientSecret = clientSecret;
+        this.transport = transport;
+    }
+
+    public String getToken() throws CommunicationErrorException {
+        long now = System.currentTimeMillis();
+        AccessToken current = this.accessToken;
+        if( current != null && !current.isExpiringWithin(now, refreshWindow(current)) )
+            return current.access_token;
+
+        if( current != null && !current.isExpired(now) ) {
+            //proactive refresh, only one thread does it and everyone else keeps the old token
+            if( !refreshLock.tryLock() ) return current.access_token;
+        } else {
+            refreshLock.lock();
+        }
+        try {
+            current = this.accessToken;
+            now = System.currentTimeMillis();
+            if( current != null && !current.isExpiringWithin(now, refreshWindow(current)) )
+                return current.access_token; //another thread refreshed while we waited
+            try {
+                this.accessToken = requestToken();
+            } catch (CommunicationErrorException communicationErrorException) {
+                if( current != null && !current.isExpired(System.currentTimeMillis()) ) {
+                    logger.warn("Controller token refresh failed, continuing with the current token until it expires: "+ communicationErrorException.getMessage());
+                    return current.access_token;
+                }
+                throw communicationErrorException;
+            }
+            return this.accessToken.access_token;
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+
+    /**
+     * Drop the cached token if it is still the one given, called when the controller rejects it with a 401
+     */
+    public void invalidate( String token ) {
+        refreshLock.lock();
+        try {
+            AccessToken current = this.accessToken;
+            if( current != null && current.access_token != null && current.access_token.equals(token) ) {
+                logger.debug("Invalidating rejected controller token");
+                this.accessToken = null;
+            }
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+
+    private long refreshWindow( AccessToken token ) {
+        return Math.min(MAX_REFRESH_WINDOW_MILLIS, token.expires_in * 1000L / 5);
+    }
+
+    private AccessToken requestToken() throws CommunicationErrorException {
+        try {
+            // Prepare the POST parameters
+            StringBuilder postData = new StringBuilder();
+            postData.append(URLEncoder.encode("grant_type", StandardCharsets.UTF_8.toString()));
+            postData.append('=');
+            postData.append(URLEncoder.encode("client_credentials", StandardCharsets.UTF_8.toString()));
+            postData.append('&');
+            postData.append(URLEncoder.encode("client_id", StandardCharsets.UTF_8.toString()));
+            postData.append('=');
+            postData.append(URLEncoder.encode(clientId, StandardCharsets.UTF_8.toString()));
+            postData.append('&');
+            postData.append(URLEncoder.encode("client_secret", StandardCharsets.UTF_8.toString()));
+            postData.append('=');
+            postData.append(URLEncoder.encode(clientSecret, StandardCharsets.UTF_8.toString()));
+
+            byte[] postDataBytes = postData.toString().getBytes(StandardCharsets.UTF_8);
+
+            HttpResult result = transport.execute(new HttpCall(HttpCall.CONTROLLER_ENDPOINT, "POST", controllerUrl + "/controller/api/oauth/access_token")
+                    .body(postDataBytes, "application/x-www-form-urlencoded"));
+
+            // Handle the response
+            if (result.statusCode == 200) {
+                AccessToken accessToken;
+                try (Reader reader = result.getBodyReader()) {
+                    accessToken = TaggingJsonCodec.readAccessToken(reader);
+                }
+                if( accessToken == null || accessToken.access_token == null )
+                    throw new CommunicationErrorException("Controller Response for token request did not contain an access_token");
+                logger.debug("Retrieved new controller token, expires in "+ accessToken.expires_in +" seconds");
+                return accessToken.markIssued(System.currentTimeMillis());
+            } else {
+                throw new HttpStatusException("Controller Response in Error for token request: "+ result.statusCode, result.statusCode,
+                        RetryPolicy.parseRetryAfter(result.getHeader("Retry-After")));
+            }
+        } catch (CommunicationErrorException communicationErrorException) {
+            throw communicationErrorException;
+        } catch (Exception e) {
+            throw new CommunicationErrorException("Error in token generation, Exception: "+ e.getMessage(), e);
+        }
+    }
+}
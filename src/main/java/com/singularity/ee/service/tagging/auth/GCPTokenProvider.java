@@ -0,0 +1,135 @@
+package com.singularity.ee.service.tagging.auth;
+
+import com.singularity.ee.agent.util.log4j.ADLoggerFactory;
+import com.singularity.ee.agent.util.log4j.IADLogger;
+import com.singularity.ee.service.tagging.http.HttpTransport;
+import com.singularity.ee.service.tagging.model.AccessToken;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the Google access token between Compute API calls instead of refreshing it on every fetch.
+ * A token with more than the refresh margin left is returned as is, once inside the margin a single background
+ * refresh is started and the current token keeps being used, only an expired or missing token refreshes inline.
+ * Where tokens come from is up to the TokenSource: a service account key file, or the metadata server of the VM.
+ */
+public class GCPTokenProvider {
+    private static final IADLogger logger = ADLoggerFactory.getLogger((String)"com.singularity.dynamicservice.tagging.GCPTokenProvider");
+    private static final long REFRESH_MARGIN_MILLIS = 5 * 60000; //google tokens last an hour, start refreshing 5 minutes early
+    private static final long EXPIRATION_MARGIN_MILLIS = 30000; //never hand out a token with less than this left
+
+    public interface TokenSource {
+        /**
+         * @return a new token with expires_at stamped, Long.MAX_VALUE if the source gave no expiration
+         */
+        AccessToken fetchToken() throws IOException;
+    }
+
+    private final TokenSource tokenSource;
+    private final AtomicBoolean refreshInProgress = new AtomicBoolean(false);
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong refreshCount = new AtomicLong();
+    private final AtomicLong refreshFailureCount = new AtomicLong();
+    private volatile AccessToken accessToken;
+    private ExecutorService refreshExecutor;
+
+    public GCPTokenProvider( TokenSource tokenSource ) {
+        this.tokenSource = tokenSource;
+    }
+
+    /**
+     * Tokens signed locally with a service account key file, scoped for the Compute API
+     */
+    public static GCPTokenProvider fromServiceAccountKeyFile( String keyFileName ) throws IOException {
+        return new GCPTokenProvider(ServiceAccountTokenSource.fromKeyFile(keyFileName));
+    }
+
+    /**
+     * Tokens of the service account attached to the VM, from the metadata server
+     */
+    public static GCPTokenProvider fromMetadataServer( HttpTransport transport, String metadataRootUrl ) {
+        return new GCPTokenProvider(new MetadataServerTokenSource(transport, metadataRootUrl));
+    }
+
+    public String getToken() throws IOException {
+        long now = System.currentTimeMillis();
+        AccessToken current = this.accessToken;
+        if( isUsable(current, now, EXPIRATION_MARGIN_MILLIS) ) {
+            hitCount.incrementAndGet();
+            if( !isUsable(current, now, REFRESH_MARGIN_MILLIS) )
+                refreshInBackground();
+            return current.access_token;
+        }
+        missCount.incrementAndGet();
+        synchronized (this) {
+            current = this.accessToken;
+            if( isUsable(current, System.currentTimeMillis(), EXPIRATION_MARGIN_MILLIS) )
+                return current.access_token; //refreshed by another thread while we waited
+            return refresh().access_token;
+        }
+    }
+
+    public long getHitCount() { return hitCount.get(); }
+    public long getMissCount() { return missCount.get(); }
+    public long getRefreshCount() { return refreshCount.get(); }
+    public long getRefreshFailureCount() { return refreshFailureCount.get(); }
+
+    public synchronized void shutdown() {
+        if( refreshExecutor != null ) {
+            refreshExecutor.shutdownNow();
+            refreshExecutor = null;
+        }
+    }
+
+    private boolean isUsable( AccessToken token, long now, long margin ) {
+        if( token == null || token.access_token == null ) return false;
+        return token.expires_at - margin > now;
+    }
+
+    private synchronized AccessToken refresh() throws IOException {
+        refreshCount.incrementAndGet();
+        try {
+            AccessToken token = tokenSource.fetchToken();
+            this.accessToken = token;
+            logger.debug("Refreshed GCP access token, expires in "+ (token.expires_at - System.currentTimeMillis()) / 1000 +" seconds");
+            return token;
+        } catch (IOException ioException) {
+            refreshFailureCount.incrementAndGet();
+            throw ioException;
+        }
+    }
+
+    private void refreshInBackground() {
+        if( !refreshInProgress.compareAndSet(false, true) ) return;
+        try {
+            getRefreshExecutor().execute(() -> {
+                try {
+                    refresh();
+                } catch (IOException e) {
+                    logger.warn("Background refresh of the GCP access token failed, will try again on next use: "+ e.getMessage());
+                } finally {
+                    refreshInProgress.set(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            refreshInProgress.set(false);
+            logger.debug("Unable to schedule background GCP token refresh: "+ e.toString());
+        }
+    }
+
+    private synchronized ExecutorService getRefreshExecutor() {
+        if( refreshExecutor == null ) {
+            refreshExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "AppDynamics-GCPTagging-TokenRefresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return refreshExecutor;
+    }
+}
@@ -0,0 +1,51 @@
+package com.singularity.ee.service.tagging.auth;
+
+import com.singularity.ee.agent.util.log4j.ADLoggerFactory;
+import com.singularity.ee.agent.util.log4j.IADLogger;
+import com.singularity.ee.service.tagging.http.HttpCall;
+import com.singularity.ee.service.tagging.http.HttpResult;
+import com.singularity.ee.service.tagging.http.HttpTransport;
+import com.singularity.ee.service.tagging.model.AccessToken;
+import com.singularity.ee.service.tagging.model.TaggingJsonCodec;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Google access tokens for the service account attached to the VM, handed out by the metadata server.
+ * One link local GET per fetch, no key file on disk and no JWT signing; the metadata server caches the token
+ * itself and hands out a fresh one well before the old one expires.
+ */
+public class MetadataServerTokenSource implements GCPTokenProvider.TokenSource {
+    private static final IADLogger logger = ADLoggerFactory.getLogger((String)"com.singularity.dynamicservice.tagging.MetadataServerTokenSource");
+    private static final String TOKEN_PATH = "instance/service-accounts/default/token";
+
+    private final HttpTransport transport;
+    private final String tokenUrl;
+
+    /**
+     * @param metadataRootUrl the computeMetadata/v1/ root
+     */
+    public MetadataServerTokenSource( HttpTransport transport, String metadataRootUrl ) {
+        this.transport = transport;
+        this.tokenUrl = (metadataRootUrl.endsWith("/") ? metadataRootUrl : metadataRootUrl +"/") + TOKEN_PATH;
+    }
+
+    @Override
+    public AccessToken fetchToken() throws IOException {
+        HttpResult result = transport.execute(new HttpCall(HttpCall.METADATA_ENDPOINT, "GET", tokenUrl)
+                .header("Metadata-Flavor", "Google"));
+        if( result.statusCode != 200 ) //404 means no service account is attached to the VM
+            throw new IOException("Metadata server Response in Error for token request: "+ result.statusCode);
+        AccessToken accessToken;
+        try (Reader reader = result.getBodyReader()) {
+            accessToken = TaggingJsonCodec.readAccessToken(reader);
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Unable to parse metadata server token response: "+ e.getMessage(), e);
+        }
+        if( accessToken.access_token == null )
+            throw new IOException("Metadata server Response for token request did not contain an access_token");
+        logger.debug("Retrieved GCP token from the metadata server, expires in "+ accessToken.expires_in +" seconds");
+        return accessToken.markIssued(System.currentTimeMillis());
+    }
+}
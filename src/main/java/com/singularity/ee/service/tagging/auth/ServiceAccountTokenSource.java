@@ -0,0 +1,43 @@
+package com.singularity.ee.service.tagging.auth;
+
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.auth.oauth2.ServiceAccountCredentials;
+import com.singularity.ee.service.tagging.model.AccessToken;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+
+/**
+ * Google access tokens from a service account key file: every fetch signs a JWT with the key and trades it at Google's token endpoint.
+ * The only class that touches google-auth, so nothing of it is loaded unless this credential mode is used.
+ */
+public class ServiceAccountTokenSource implements GCPTokenProvider.TokenSource {
+    private final GoogleCredentials credentials;
+
+    public ServiceAccountTokenSource( GoogleCredentials credentials ) {
+        this.credentials = credentials;
+    }
+
+    public static ServiceAccountTokenSource fromKeyFile( String keyFileName ) throws IOException {
+        try (InputStream inputStream = new FileInputStream(keyFileName)) {
+            return new ServiceAccountTokenSource(ServiceAccountCredentials.fromStream(inputStream)
+                    .createScoped(Collections.singletonList("https://www.googleapis.com/auth/cloud-platform")));
+        }
+    }
+
+    @Override
+    public AccessToken fetchToken() throws IOException {
+        com.google.auth.oauth2.AccessToken googleToken = credentials.refreshAccessToken();
+        AccessToken token = new AccessToken();
+        token.access_token = googleToken.getTokenValue();
+        if( googleToken.getExpirationTime() == null ) { //no expiration given, keep it until the api rejects it
+            token.expires_at = Long.MAX_VALUE;
+        } else {
+            token.expires_at = googleToken.getExpirationTime().getTime();
+            token.expires_in = (int) Math.max(0, (token.expires_at - System.currentTimeMillis()) / 1000);
+        }
+        return token;
+    }
+}
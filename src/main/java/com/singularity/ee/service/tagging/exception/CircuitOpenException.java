@@ -0,0 +1,5 @@
+package com.singularity.ee.service.tagging.exception;
+
+public class CircuitOpenException extends CommunicationErrorException{
+    public CircuitOpenException(String s) { super(s);}
+}
@@ -2,4 +2,5 @@ package com.singularity.ee.service.tagging.exception;
 
 public class CommunicationErrorException extends Exception{
     public CommunicationErrorException(String s) { super(s);}
+    public CommunicationErrorException(String s, Throwable cause) { super(s, cause);}
 }
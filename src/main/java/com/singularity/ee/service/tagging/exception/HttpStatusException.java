@@ -0,0 +1,19 @@
+package com.singularity.ee.service.tagging.exception;
+
+public class HttpStatusException extends CommunicationErrorException{
+    private final int statusCode;
+    private final long retryAfterMillis;
+
+    public HttpStatusException(String s, int statusCode, long retryAfterMillis) {
+        super(s);
+        this.statusCode = statusCode;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public int getStatusCode() { return statusCode; }
+
+    /**
+     * @return how long the server asked us to wait with a Retry-After header, or -1 if it did not say
+     */
+    public long getRetryAfterMillis() { return retryAfterMillis; }
+}
@@ -0,0 +1,343 @@
+package com.singularity.ee.service.tagging.fleet;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.singularity.ee.agent.util.log4j.ADLoggerFactory;
+import com.singularity.ee.agent.util.log4j.IADLogger;
+import com.singularity.ee.service.tagging.AgentNodeProperties;
+import com.singularity.ee.service.tagging.auth.ControllerTokenProvider;
+import com.singularity.ee.service.tagging.auth.GCPTokenProvider;
+import com.singularity.ee.service.tagging.exception.CommunicationErrorException;
+import com.singularity.ee.service.tagging.exception.ConfigurationException;
+import com.singularity.ee.service.tagging.gcp.AggregatedInstanceLister;
+import com.singularity.ee.service.tagging.gcp.GCEInstanceParser;
+import com.singularity.ee.service.tagging.gcp.MetadataServer;
+import com.singularity.ee.service.tagging.http.CircuitBreaker;
+import com.singularity.ee.service.tagging.http.CompressingHttpTransport;
+import com.singularity.ee.service.tagging.http.HttpResult;
+import com.singularity.ee.service.tagging.http.PooledHttpTransport;
+import com.singularity.ee.service.tagging.http.RetryPolicy;
+import com.singularity.ee.service.tagging.http.TokenBucket;
+import com.singularity.ee.service.tagging.model.BatchTaggingRequest;
+import com.singularity.ee.service.tagging.model.Entity;
+import com.singularity.ee.service.tagging.model.EntityType;
+import com.singularity.ee.service.tagging.model.GCEInstance;
+import com.singularity.ee.service.tagging.model.Tag;
+import com.singularity.ee.service.tagging.sync.BatchUploader;
+import com.singularity.ee.service.tagging.sync.TagGovernor;
+import com.singularity.ee.service.tagging.task.ControllerClient;
+import com.singularity.ee.service.tagging.task.SyncCycleMetrics;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tags a whole project from one process instead of every agent tagging itself: instances come from Compute
+ * instances.aggregatedList a page at a time, are matched to controller nodes by machine name, and their tags go to
+ * tagEntitiesInBatch in chunks of agent.tagging.batch.maxEntities with a few chunks in flight at once. Listing waits when
+ * all upload slots are busy, so neither the instances nor the entities of a large project are ever all in memory.
+ * Agents on the tagged nodes should set the node property agent.tagging.passive=true so they do not tag again.
+ * <pre>
+ * java -cp "Tagging-&lt;version&gt;.jar:&lt;agent dir&gt;/lib/*" com.singularity.ee.service.tagging.fleet.FleetTagger fleet.properties
+ * </pre>
+ * The agent jars are needed on the classpath for logging and the shared classes. The properties file takes the keys of
+ * tagging.properties, plus gcp-project, fleet-concurrency (chunks in flight, default 4) and fleet-interval-minutes
+ * (0, the default, runs once), and any agent.tagging.* node property, e.g. a higher agent.tagging.batch.maxEntities.
+ * Every chunk takes a permit of the one controller rate limit, 30 requests a minute with a burst of 5 by default, so a
+ * higher fleet-concurrency only helps with agent.tagging.controller.maxRequestsPerMinute and agent.tagging.controller.burst
+ * raised along with it; the connection pool is sized from fleet-concurrency. Only upserts are sent, a tag that disappears
+ * from an instance stays on its node until the node's agent or an operator removes it.
+ */
+public class FleetTagger {
+    private static final IADLogger logger = ADLoggerFactory.getLogger((String)"com.singularity.dynamicservice.tagging.FleetTagger");
+    private static final String CONTROLLER_URL_PROPERTY = "controller-url";
+    private static final String CONTROLLER_APICLIENT_PROPERTY = "controller-api-client";
+    private static final String CONTROLLER_APISECRET_PROPERTY = "controller-api-secret";
+    private static final String GCP_PROJECT_PROPERTY = "gcp-project";
+    private static final String GCP_SERVICE_ACCOUNT_KEY_FILE_PROPERTY = "gcp-service-account-key-file";
+    private static final String GCP_CREDENTIALS_PROPERTY = "gcp-credentials";
+    private static final String GCP_METADATA_URL_PROPERTY = "gcp-metadata-url";
+    private static final String GCP_COMPUTE_URL_PROPERTY = "gcp-compute-url";
+    private static final String GCP_INSTANCE_TAG_FIELDS_PROPERTY = "gcp-instance-tag-fields";
+    private static final String CONCURRENCY_PROPERTY = "fleet-concurrency";
+    private static final String INTERVAL_MINUTES_PROPERTY = "fleet-interval-minutes";
+    private static final String DEFAULT_COMPUTE_URL = "https://compute.googleapis.com/compute/v1/";
+
+    private final String projectId;
+    private final int concurrency;
+    private final AgentNodeProperties agentNodeProperties;
+    private final CompressingHttpTransport httpTransport;
+    private final GCPTokenProvider gcpTokenProvider;
+    private final GCEInstanceParser gceInstanceParser;
+    private final ControllerClient controllerClient;
+    private final AggregatedInstanceLister instanceLister;
+    private final Gson gson = new Gson();
+
+    /**
+     * The fields of a controller node we match and tag by, from /controller/rest/applications/{id}/nodes
+     */
+    static class ControllerNode {
+        long id;
+        String name;
+        String machineName;
+    }
+
+    static class ControllerApplication {
+        long id;
+        String name;
+    }
+
+    public static class Result {
+        public long instances;
+        public long matchedInstances;
+        public long entities;
+        public long failedEntities;
+        public long chunks;
+    }
+
+    public FleetTagger( Properties properties ) throws ConfigurationException {
+        StringBuilder missing = new StringBuilder();
+        for( String property : new String[]{ CONTROLLER_URL_PROPERTY, CONTROLLER_APICLIENT_PROPERTY, CONTROLLER_APISECRET_PROPERTY, GCP_PROJECT_PROPERTY } ) {
+            if( properties.getProperty(property) == null )
+                missing.append(String.format(" Missing required property: '%s'", property));
+        }
+        if( missing.length() > 0 ) throw new ConfigurationException("Error in fleet tagger configuration properties, Issues:"+ missing);
+        this.projectId = properties.getProperty(GCP_PROJECT_PROPERTY).trim();
+        try {
+            this.concurrency = Math.max(1, Integer.parseInt(properties.getProperty(CONCURRENCY_PROPERTY, "4").trim()));
+        } catch (NumberFormatException e) {
+            throw new ConfigurationException("Error in property "+ CONCURRENCY_PROPERTY +": "+ e.getMessage());
+        }
+        this.agentNodeProperties = new AgentNodeProperties();
+        for( String name : properties.stringPropertyNames() ) {
+            if( name.startsWith("agent.tagging.") ) agentNodeProperties.updateProperty(name, properties.getProperty(name).trim());
+        }
+        try {
+            String tagFields = properties.getProperty(GCP_INSTANCE_TAG_FIELDS_PROPERTY);
+            this.gceInstanceParser = new GCEInstanceParser(tagFields == null ? GCEInstance.DEFAULT_TAG_FIELDS : tagFields.trim().split("\\s*,\\s*"));
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException("Error in property "+ GCP_INSTANCE_TAG_FIELDS_PROPERTY +": "+ e.getMessage());
+        }
+        if( concurrency > agentNodeProperties.getControllerBurst() )
+            logger.warn(String.format("%s=%d is more than %s=%d, chunks will wait on the controller rate limit instead of running at once",
+                    CONCURRENCY_PROPERTY, concurrency, AgentNodeProperties.CONTROLLER_BURST_PROPERTY, agentNodeProperties.getControllerBurst()));
+        //one connection per chunk in flight, one more for a token refresh alongside them
+        this.httpTransport = new CompressingHttpTransport(new PooledHttpTransport(concurrency + 1), agentNodeProperties.getGzipMinBytes());
+        this.gcpTokenProvider = initGcpTokenProvider(properties);
+        RetryPolicy retryPolicy = new RetryPolicy(3, 500, 10000);
+        String controllerUrl = properties.getProperty(CONTROLLER_URL_PROPERTY);
+        ControllerTokenProvider controllerTokenProvider = new ControllerTokenProvider(controllerUrl, properties.getProperty(CONTROLLER_APICLIENT_PROPERTY),
+                properties.getProperty(CONTROLLER_APISECRET_PROPERTY), httpTransport);
+        this.controllerClient = new ControllerClient(controllerUrl, controllerTokenProvider, httpTransport, agentNodeProperties, retryPolicy,
+                new CircuitBreaker("controller", 5, 5 * 60000),
+                new TokenBucket(agentNodeProperties.getControllerRequestsPerMinute(), agentNodeProperties.getControllerBurst()), new SyncCycleMetrics());
+        this.instanceLister = new AggregatedInstanceLister(httpTransport, gcpTokenProvider, gceInstanceParser, retryPolicy,
+                new CircuitBreaker("compute", 5, 5 * 60000), properties.getProperty(GCP_COMPUTE_URL_PROPERTY, DEFAULT_COMPUTE_URL));
+    }
+
+    /**
+     * Same choice as the agent: gcp-credentials=key-file needs gcp-service-account-key-file, metadata-server uses the VM the tagger runs on
+     */
+    private GCPTokenProvider initGcpTokenProvider( Properties properties ) throws ConfigurationException {
+        String keyFileName = properties.getProperty(GCP_SERVICE_ACCOUNT_KEY_FILE_PROPERTY);
+        String mode = properties.getProperty(GCP_CREDENTIALS_PROPERTY, keyFileName == null ? "metadata-server" : "key-file").trim();
+        if( "metadata-server".equals(mode) )
+            return GCPTokenProvider.fromMetadataServer(httpTransport, properties.getProperty(GCP_METADATA_URL_PROPERTY, MetadataServer.METADATA_ROOT_URL));
+        if( !"key-file".equals(mode) )
+            throw new ConfigurationException(String.format("Error in property %s: '%s', expected metadata-server or key-file", GCP_CREDENTIALS_PROPERTY, mode));
+        if( keyFileName == null )
+            throw new ConfigurationException(String.format("Missing required property: '%s' for %s=key-file", GCP_SERVICE_ACCOUNT_KEY_FILE_PROPERTY, GCP_CREDENTIALS_PROPERTY));
+        try {
+            return GCPTokenProvider.fromServiceAccountKeyFile(keyFileName);
+        } catch (Exception e) {
+            throw new ConfigurationException("Error initializing credentials from file: "+ keyFileName +" Exception: "+ e.getMessage());
+        }
+    }
+
+    /**
+     * One pass over the project: map nodes, list instances, upload every matched node's tags
+     */
+    public Result run() throws CommunicationErrorException, InterruptedException {
+        Map<String, List<ControllerNode>> nodesByMachine = loadControllerNodes();
+        AgentNodeProperties.Snapshot nodeProperties = agentNodeProperties.snapshot();
+        TagGovernor tagGovernor = new TagGovernor(nodeProperties.tagsMaxCount, nodeProperties.tagsMaxValueLength, nodeProperties.tagsAllow,
+                nodeProperties.tagsDeny, nodeProperties.tagsPriority);
+        int chunkSize = Math.max(1, nodeProperties.batchMaxEntities);
+        Result result = new Result();
+        AtomicLong failedEntities = new AtomicLong();
+        Semaphore uploadSlots = new Semaphore(concurrency);
+        ExecutorService uploaders = Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, "AppDynamics-GCPTagging-FleetUpload");
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<Entity> chunk = new ArrayList<>(chunkSize);
+        try {
+            result.instances = instanceLister.list(projectId, (zone, instance) -> {
+                List<ControllerNode> nodes = instance.name == null ? null : nodesByMachine.get(instance.name.toLowerCase(Locale.ROOT));
+                if( nodes == null ) return;
+                result.matchedInstances++;
+                Map<String,String> tags = tagGovernor.apply(BatchTaggingRequest.buildTagMap(instance, gceInstanceParser.getTagFields())).tags;
+                for( ControllerNode node : nodes ) {
+                    chunk.add(newEntity(node.name, node.id, tags));
+                    if( chunk.size() >= chunkSize ) {
+                        submit(uploaders, uploadSlots, new ArrayList<>(chunk), nodeProperties.batchMaxRetries, failedEntities);
+                        result.entities += chunk.size();
+                        result.chunks++;
+                        chunk.clear();
+                    }
+                }
+            });
+            if( !chunk.isEmpty() ) {
+                submit(uploaders, uploadSlots, new ArrayList<>(chunk), nodeProperties.batchMaxRetries, failedEntities);
+                result.entities += chunk.size();
+                result.chunks++;
+            }
+        } catch (UploadInterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedException("Interrupted waiting for an upload slot");
+        } finally {
+            awaitUploads(uploaders); //also when the listing failed, chunks already handed over are finished, not cut off
+        }
+        if( Thread.interrupted() ) throw new InterruptedException("Interrupted waiting for chunk uploads to finish");
+        result.failedEntities = failedEntities.get();
+        logger.info(String.format("Fleet tagging of project %s: %d instances, %d matched to nodes, %d entities in %d chunks, %d failed",
+                projectId, result.instances, result.matchedInstances, result.entities, result.chunks, result.failedEntities));
+        return result;
+    }
+
+    public void shutdown() {
+        gcpTokenProvider.shutdown();
+        httpTransport.close();
+    }
+
+    /**
+     * Blocks the lister while concurrency chunks are already uploading
+     */
+    private void submit( ExecutorService uploaders, Semaphore uploadSlots, List<Entity> entities, int maxRetries, AtomicLong failedEntities ) {
+        try {
+            uploadSlots.acquire();
+        } catch (InterruptedException e) {
+            throw new UploadInterruptedException();
+        }
+        uploaders.execute(() -> {
+            try {
+                BatchUploader batchUploader = new BatchUploader(controllerClient::uploadTags, entities.size(), maxRetries);
+                failedEntities.addAndGet(batchUploader.upload(Collections.singletonMap(EntityType.Node, entities)).size());
+            } catch (CommunicationErrorException e) {
+                logger.error("Communication Error in uploading a chunk of "+ entities.size() +" node tags: "+ e.getMessage());
+                failedEntities.addAndGet(entities.size());
+            } finally {
+                uploadSlots.release();
+            }
+        });
+    }
+
+    /**
+     * Lets every submitted chunk finish, an interrupt while waiting cancels them instead and is left set for the caller
+     */
+    private static void awaitUploads( ExecutorService uploaders ) {
+        uploaders.shutdown();
+        try {
+            while (!uploaders.awaitTermination(1, TimeUnit.MINUTES))
+                logger.debug("Waiting for chunk uploads still in flight");
+        } catch (InterruptedException e) {
+            uploaders.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Carries an interrupt out of the lister's consumer, which cannot throw checked exceptions
+     */
+    private static class UploadInterruptedException extends RuntimeException {}
+
+    /**
+     * @return controller nodes by the lower case short name of the machine they run on, which is the instance name on GCE
+     */
+    private Map<String, List<ControllerNode>> loadControllerNodes() throws CommunicationErrorException {
+        Map<String, List<ControllerNode>> nodesByMachine = new HashMap<>();
+        Set<Long> seen = new HashSet<>();
+        List<ControllerApplication> applications = readJson(controllerClient.get("/controller/rest/applications?output=JSON"),
+                new TypeToken<List<ControllerApplication>>(){}.getType());
+        for( ControllerApplication application : applications ) {
+            List<ControllerNode> nodes = readJson(controllerClient.get("/controller/rest/applications/"+ application.id +"/nodes?output=JSON"),
+                    new TypeToken<List<ControllerNode>>(){}.getType());
+            for( ControllerNode node : nodes ) {
+                if( node.machineName == null || !seen.add(node.id) ) continue;
+                String machine = node.machineName.toLowerCase(Locale.ROOT);
+                int dot = machine.indexOf('.');
+                if( dot > 0 ) machine = machine.substring(0, dot);
+                nodesByMachine.computeIfAbsent(machine, k -> new ArrayList<>()).add(node);
+            }
+        }
+        logger.info(String.format("Found %d nodes on %d machines in %d applications", seen.size(), nodesByMachine.size(), applications.size()));
+        return nodesByMachine;
+    }
+
+    private <T> T readJson( HttpResult response, Type type ) throws CommunicationErrorException {
+        try (Reader reader = response.getBodyReader()) {
+            T value = gson.fromJson(reader, type);
+            if( value == null ) throw new CommunicationErrorException("Empty response from the controller");
+            return value;
+        } catch (IOException | RuntimeException e) {
+            throw new CommunicationErrorException("Unable to parse controller response: "+ e.getMessage(), e);
+        }
+    }
+
+    private static Entity newEntity( String name, long id, Map<String,String> tags ) {
+        Entity entity = new Entity(name, id);
+        for( Map.Entry<String,String> tag : tags.entrySet() )
+            entity.tags.add(new Tag(tag.getKey(), tag.getValue()));
+        return entity;
+    }
+
+    public static void main( String[] args ) throws Exception {
+        if( args.length != 1 ) {
+            System.err.println("Usage: FleetTagger <fleet.properties>");
+            System.exit(2);
+        }
+        Properties properties = new Properties();
+        File configFile = new File(args[0]);
+        try (InputStream inputStream = new FileInputStream(configFile)) {
+            properties.load(inputStream);
+        } catch (IOException e) {
+            throw new ConfigurationException("Error reading config file: "+ configFile.getAbsolutePath() +" Exception: "+ e.getMessage());
+        }
+        long intervalMinutes = Long.parseLong(properties.getProperty(INTERVAL_MINUTES_PROPERTY, "0").trim());
+        FleetTagger fleetTagger = new FleetTagger(properties);
+        boolean succeeded;
+        try {
+            do {
+                try {
+                    succeeded = fleetTagger.run().failedEntities == 0;
+                } catch (CommunicationErrorException e) {
+                    logger.error("Fleet tagging failed: "+ e.getMessage());
+                    succeeded = false;
+                }
+                if( intervalMinutes > 0 ) TimeUnit.MINUTES.sleep(intervalMinutes);
+            } while (intervalMinutes > 0);
+        } finally {
+            fleetTagger.shutdown();
+        }
+        System.exit(succeeded ? 0 : 1);
+    }
+}
@@ -0,0 +1,156 @@
+package com.singularity.ee.service.tagging.gcp;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.singularity.ee.agent.util.log4j.ADLoggerFactory;
+import com.singularity.ee.agent.util.log4j.IADLogger;
+import com.singularity.ee.service.tagging.auth.GCPTokenProvider;
+import com.singularity.ee.service.tagging.exception.CommunicationErrorException;
+import com.singularity.ee.service.tagging.exception.HttpStatusException;
+import com.singularity.ee.service.tagging.http.CircuitBreaker;
+import com.singularity.ee.service.tagging.http.HttpCall;
+import com.singularity.ee.service.tagging.http.HttpResult;
+import com.singularity.ee.service.tagging.http.HttpTransport;
+import com.singularity.ee.service.tagging.http.RetryPolicy;
+import com.singularity.ee.service.tagging.model.GCEInstance;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Walks every instance of a project with Compute instances.aggregatedList, one page at a time.
+ * Each page is parsed off a streaming JsonReader, instances are handed to the consumer as they are read and nothing of
+ * a page is kept once the next one is requested, so memory stays at one page however large the project is.
+ * The same field mask as the in-agent fetch keeps each instance down to what the tag mapping needs.
+ */
+public class AggregatedInstanceLister {
+    private static final IADLogger logger = ADLoggerFactory.getLogger((String)"com.singularity.dynamicservice.tagging.AggregatedInstanceLister");
+    public static final int MAX_RESULTS_PER_PAGE = 500; //the most aggregatedList returns in one page
+
+    private final HttpTransport httpTransport;
+    private final GCPTokenProvider gcpTokenProvider;
+    private final GCEInstanceParser gceInstanceParser;
+    private final RetryPolicy retryPolicy;
+    private final CircuitBreaker computeCircuitBreaker;
+    private final String computeUrl;
+
+    public interface InstanceConsumer {
+        /**
+         * @param zone the zone name, e.g. us-central1-a
+         */
+        void accept( String zone, GCEInstance instance );
+    }
+
+    public AggregatedInstanceLister( HttpTransport httpTransport, GCPTokenProvider gcpTokenProvider, GCEInstanceParser gceInstanceParser,
+                                     RetryPolicy retryPolicy, CircuitBreaker computeCircuitBreaker, String computeUrl ) {
+        this.httpTransport = httpTransport;
+        this.gcpTokenProvider = gcpTokenProvider;
+        this.gceInstanceParser = gceInstanceParser;
+        this.retryPolicy = retryPolicy;
+        this.computeCircuitBreaker = computeCircuitBreaker;
+        this.computeUrl = computeUrl.endsWith("/") ? computeUrl : computeUrl + "/";
+    }
+
+    /**
+     * @return how many instances were handed to the consumer
+     */
+    public long list( String projectId, InstanceConsumer consumer ) throws CommunicationErrorException {
+        String fields;
+        try {
+            fields = URLEncoder.encode("items/*/instances("+ gceInstanceParser.getFieldMask() +"),nextPageToken", StandardCharsets.UTF_8.toString());
+        } catch (IOException e) {
+            throw new CommunicationErrorException("Unable to encode the field mask: "+ e.getMessage(), e);
+        }
+        String firstPage = String.format("%sprojects/%s/aggregated/instances?maxResults=%d&fields=%s", computeUrl, projectId, MAX_RESULTS_PER_PAGE, fields);
+        long instances = 0;
+        int pages = 0;
+        String pageToken = null;
+        do {
+            String url = pageToken == null ? firstPage : firstPage + "&pageToken=" + encode(pageToken);
+            HttpResult page = retryPolicy.execute(computeCircuitBreaker, () -> fetchPage(projectId, url));
+            Page parsed;
+            try (Reader reader = page.getBodyReader()) {
+                parsed = readPage(new JsonReader(reader), consumer);
+            } catch (IOException | IllegalStateException | NumberFormatException e) {
+                throw new CommunicationErrorException("Unable to parse aggregatedList page "+ (pages + 1) +" of project "+ projectId +": "+ e.getMessage(), e);
+            }
+            instances += parsed.instances;
+            pages++;
+            pageToken = parsed.nextPageToken;
+            logger.debug(String.format("Read aggregatedList page %d of project %s, %d instances so far", pages, projectId, instances));
+        } while (pageToken != null && !pageToken.isEmpty());
+        return instances;
+    }
+
+    private HttpResult fetchPage( String projectId, String url ) throws IOException, HttpStatusException {
+        HttpResult result = httpTransport.execute(new HttpCall(HttpCall.COMPUTE_ENDPOINT, "GET", url)
+                .header("Authorization", "Bearer " + gcpTokenProvider.getToken())
+                .acceptGzip());
+        if (result.statusCode != HttpURLConnection.HTTP_OK) {
+            throw new HttpStatusException("Compute API Response in Error listing instances of project "+ projectId +": "+ result.statusCode, result.statusCode,
+                    RetryPolicy.parseRetryAfter(result.getHeader("Retry-After")));
+        }
+        return result;
+    }
+
+    private static class Page {
+        String nextPageToken;
+        long instances;
+    }
+
+    /**
+     * <pre>{"items": {"zones/us-central1-a": {"instances": [...]}, "zones/us-east1-b": {"warning": {...}}}, "nextPageToken": "..."}</pre>
+     */
+    private Page readPage( JsonReader reader, InstanceConsumer consumer ) throws IOException {
+        Page page = new Page();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if( "nextPageToken".equals(name) && reader.peek() == JsonToken.STRING ) {
+                page.nextPageToken = reader.nextString();
+            } else if( "items".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT ) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String scope = reader.nextName();
+                    String zone = scope.startsWith("zones/") ? scope.substring("zones/".length()) : scope;
+                    page.instances += readScope(reader, zone, consumer);
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return page;
+    }
+
+    private long readScope( JsonReader reader, String zone, InstanceConsumer consumer ) throws IOException {
+        long instances = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if( "instances".equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_ARRAY ) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    consumer.accept(zone, gceInstanceParser.parse(reader));
+                    instances++;
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue(); //warning for zones without instances
+            }
+        }
+        reader.endObject();
+        return instances;
+    }
+
+    private static String encode( String value ) throws CommunicationErrorException {
+        try {
+            return URLEncoder.encode(value, StandardCharsets.UTF_8.toString());
+        } catch (IOException e) {
+            throw new CommunicationErrorException("Unable to encode page token: "+ e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.singularity.ee.service.tagging.gcp;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.singularity.ee.service.tagging.model.GCEInstance;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Projection only reader for the Compute instances.get response.
+ * It pulls the top level fields the tag mapping needs straight off a streaming JsonReader and skips everything else,
+ * so disks, network interfaces, service accounts and metadata items are never bound to objects.
+ * The same field list builds the fields= mask that keeps Compute from sending the rest in the first place.
+ */
+public class GCEInstanceParser {
+    private static final Set<String> ALWAYS_READ = Collections.unmodifiableSet(new HashSet<>(Arrays.asList("labels", "fingerprint", "labelFingerprint")));
+
+    private final String[] tagFields;
+    private final Set<String> wantedFields;
+    private final String fieldMask;
+
+    public GCEInstanceParser( String[] tagFields ) {
+        Set<String> known = new HashSet<>(Arrays.asList(GCEInstance.TAG_CAPABLE_FIELDS));
+        Set<String> wanted = new LinkedHashSet<>();
+        for( String field : tagFields ) {
+            if( !known.contains(field) ) throw new IllegalArgumentException("Unknown GCE instance tag field: "+ field);
+            wanted.add(field);
+        }
+        this.tagFields = wanted.toArray(new String[0]);
+        wanted.addAll(ALWAYS_READ);
+        this.wantedFields = Collections.unmodifiableSet(wanted);
+        this.fieldMask = String.join(",", wanted);
+    }
+
+    public String[] getTagFields() {
+        return tagFields;
+    }
+
+    /**
+     * Value for the Compute API fields= query parameter, the tag fields plus labels and the fingerprints change detection uses
+     */
+    public String getFieldMask() {
+        return fieldMask;
+    }
+
+    public GCEInstance parse( Reader input ) throws IOException {
+        return parse(new JsonReader(input));
+    }
+
+    /**
+     * Reads one instance object from where the reader is positioned, e.g. an element of an aggregatedList page
+     */
+    public GCEInstance parse( JsonReader reader ) throws IOException {
+        GCEInstance instance = new GCEInstance();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if( !wantedFields.contains(name) || reader.peek() == JsonToken.NULL ) {
+                reader.skipValue();
+                continue;
+            }
+            switch (name) {
+                case "id": instance.id = reader.nextString(); break;
+                case "creationTimestamp": instance.creationTimestamp = reader.nextString(); break;
+                case "name": instance.name = reader.nextString(); break;
+                case "description": instance.description = reader.nextString(); break;
+                case "zone": instance.zone = reader.nextString(); break;
+                case "machineType": instance.machineType = reader.nextString(); break;
+                case "status": instance.status = reader.nextString(); break;
+                case "statusMessage": instance.statusMessage = reader.nextString(); break;
+                case "canIpForward": instance.canIpForward = reader.nextBoolean(); break;
+                case "selfLink": instance.selfLink = reader.nextString(); break;
+                case "cpuPlatform": instance.cpuPlatform = reader.nextString(); break;
+                case "deletionProtection": instance.deletionProtection = reader.nextBoolean(); break;
+                case "reservationAffinity": instance.reservationAffinity = readReservationAffinity(reader); break;
+                case "fingerprint": instance.fingerprint = reader.nextString(); break;
+                case "labelFingerprint": instance.labelFingerprint = reader.nextString(); break;
+                case "labels": instance.labels = readLabels(reader); break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return instance;
+    }
+
+    private Map<String,String> readLabels( JsonReader reader ) throws IOException {
+        Map<String,String> labels = new TreeMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            if( reader.peek() == JsonToken.NULL ) {
+                reader.nextNull();
+                labels.put(key, null);
+            } else {
+                labels.put(key, reader.nextString());
+            }
+        }
+        reader.endObject();
+        return labels;
+    }
+
+    /**
+     * The API returns reservationAffinity as an object, we tag with its consumeReservationType
+     */
+    private String readReservationAffinity( JsonReader reader ) throws IOException {
+        if( reader.peek() != JsonToken.BEGIN_OBJECT ) return reader.nextString();
+        String type = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if( "consumeReservationType".equals(reader.nextName()) && reader.peek() == JsonToken.STRING ) {
+                type = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return type;
+    }
+}
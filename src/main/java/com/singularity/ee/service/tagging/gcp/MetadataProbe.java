@@ -0,0 +1,76 @@
+package com.singularity.ee.service.tagging.gcp;
+
+import com.singularity.ee.agent.util.log4j.ADLoggerFactory;
+import com.singularity.ee.agent.util.log4j.IADLogger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Answers "is this a GCE VM" with one short request to the metadata server by its link local address, so a host
+ * off GCP costs a connect timeout instead of a DNS lookup of metadata.google.internal that may never resolve.
+ * A metadata server found is kept for the life of the JVM, a host does not move off GCP while the agent runs, so restarting
+ * the service does not probe again. Not finding one is only kept for NOT_FOUND_TTL_MILLIS, a probe that failed because the
+ * metadata server was slow to come up at boot or briefly unreachable is tried again by the first sync cycle after that.
+ */
+public class MetadataProbe {
+    private static final IADLogger logger = ADLoggerFactory.getLogger((String)"com.singularity.dynamicservice.tagging.MetadataProbe");
+    public static final String METADATA_IP_ROOT_URL = "http://169.254.169.254/computeMetadata/v1/";
+    private static final int CONNECT_TIMEOUT_MILLIS = 500;
+    private static final int READ_TIMEOUT_MILLIS = 1000;
+    private static final long NOT_FOUND_TTL_MILLIS = 5 * 60000L;
+    private static final Set<String> found = ConcurrentHashMap.newKeySet();
+    private static final Map<String, Long> notFoundUntil = new ConcurrentHashMap<>();
+
+    private MetadataProbe() {}
+
+    /**
+     * @param rootUrl the metadata root the task is configured with, the default is probed by IP, anything else as given
+     */
+    public static boolean isOnGCP( String rootUrl ) {
+        String probeUrl = MetadataServer.METADATA_ROOT_URL.equals(rootUrl) ? METADATA_IP_ROOT_URL : rootUrl;
+        if( found.contains(probeUrl) ) return true;
+        Long until = notFoundUntil.get(probeUrl);
+        if( until != null && System.currentTimeMillis() < until ) return false;
+        if( probe(probeUrl) ) {
+            found.add(probeUrl);
+            notFoundUntil.remove(probeUrl);
+            logger.info("GCP metadata server found at "+ probeUrl);
+            return true;
+        }
+        if( notFoundUntil.put(probeUrl, System.currentTimeMillis() + NOT_FOUND_TTL_MILLIS) == null ) {
+            logger.info("GCP metadata server not found at "+ probeUrl +", probing again in "+ NOT_FOUND_TTL_MILLIS / 60000 +" minutes at the earliest");
+        } else {
+            logger.debug("GCP metadata server still not found at "+ probeUrl);
+        }
+        return false;
+    }
+
+    private static boolean probe( String probeUrl ) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(probeUrl).openConnection(Proxy.NO_PROXY); //the metadata server is never behind a proxy
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            connection.setInstanceFollowRedirects(false);
+            connection.setRequestProperty("Metadata-Flavor", "Google");
+            int statusCode = connection.getResponseCode();
+            try (InputStream ignored = statusCode < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                //drain nothing, just release the connection
+            }
+            //anything can answer on a link local address, only the metadata server sets this header
+            return statusCode == 200 && "Google".equals(connection.getHeaderField("Metadata-Flavor"));
+        } catch (IOException | RuntimeException e) {
+            logger.debug("GCP metadata probe of "+ probeUrl +" failed: "+ e.toString());
+            return false;
+        } finally {
+            if( connection != null ) connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.singularity.ee.service.tagging.gcp;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.singularity.ee.agent.util.log4j.ADLoggerFactory;
+import com.singularity.ee.agent.util.log4j.IADLogger;
+import com.singularity.ee.service.tagging.exception.HttpStatusException;
+import com.singularity.ee.service.tagging.http.HttpCall;
+import com.singularity.ee.service.tagging.http.HttpResult;
+import com.singularity.ee.service.tagging.http.HttpTransport;
+import com.singularity.ee.service.tagging.http.RetryPolicy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reads the whole instance and project tree from the GCE metadata server in one recursive request and keeps its ETag.
+ * Once we have an ETag, refresh() asks the server to answer right away only if the tree changed since then,
+ * which makes it a cheap local check for whether anything about this VM moved.
+ * The tree travels as the ETag line followed by the JSON, so a read made by another JVM on the host can be handed to refresh.
+ */
+public class MetadataServer {
+    private static final IADLogger logger = ADLoggerFactory.getLogger((String)"com.singularity.dynamicservice.tagging.MetadataServer");
+    public static final String METADATA_ROOT_URL = "http://metadata.google.internal/computeMetadata/v1/";
+    private static final int WAIT_FOR_CHANGE_TIMEOUT_SECONDS = 1;
+
+    private final Gson gson;
+    private final HttpTransport transport;
+    private final String rootUrl;
+    private volatile String etag;
+    private volatile JsonObject tree;
+    private volatile byte[] encoded; //what refresh accepted, ETag line and tree
+
+    public MetadataServer( Gson gson, HttpTransport transport ) {
+        this(gson, transport, METADATA_ROOT_URL);
+    }
+
+    /**
+     * @param rootUrl the computeMetadata/v1/ root, only ever different from METADATA_ROOT_URL when pointed at a stand-in server
+     */
+    public MetadataServer( Gson gson, HttpTransport transport, String rootUrl ) {
+        this.gson = gson;
+        this.transport = transport;
+        this.rootUrl = rootUrl.endsWith("/") ? rootUrl : rootUrl +"/";
+    }
+
+    public interface TreeFetcher {
+        byte[] fetch() throws IOException, HttpStatusException;
+    }
+
+    /**
+     * @return true if this is the first read or the metadata changed since the last one
+     */
+    public boolean refresh() throws IOException, HttpStatusException {
+        return refresh(this::fetchTree);
+    }
+
+    /**
+     * @param treeFetcher fetchTree, or a copy of what fetchTree returned in another JVM on this host
+     * @return true if this is the first read or the metadata changed since the last one
+     */
+    public boolean refresh( TreeFetcher treeFetcher ) throws IOException, HttpStatusException {
+        byte[] fetched = treeFetcher.fetch();
+        int newline = 0;
+        while (newline < fetched.length && fetched[newline] != '\n') newline++;
+        if( newline == fetched.length ) throw new IOException("Metadata tree of "+ fetched.length +" bytes has no ETag line");
+        String newEtag = newline == 0 ? null : new String(fetched, 0, newline, StandardCharsets.UTF_8);
+        String currentEtag = this.etag;
+        if( currentEtag != null && currentEtag.equals(newEtag) ) {
+            return false;
+        }
+        try (Reader reader = new InputStreamReader(new ByteArrayInputStream(fetched, newline + 1, fetched.length - newline - 1), StandardCharsets.UTF_8)) {
+            this.tree = gson.fromJson(reader, JsonObject.class);
+        }
+        this.encoded = fetched;
+        this.etag = newEtag;
+        logger.debug("Metadata server tree changed, new ETag "+ newEtag);
+        return true;
+    }
+
+    /**
+     * One read of the tree, once we have an ETag the server answers right away only if it changed, otherwise at the timeout.
+     * @return the ETag, a newline and the tree without its custom attributes, which routinely hold startup scripts and ssh keys
+     * and so are kept out of the host cache file
+     */
+    public byte[] fetchTree() throws IOException, HttpStatusException {
+        String currentEtag = this.etag;
+        StringBuilder urlString = new StringBuilder(rootUrl).append("?recursive=true");
+        if( currentEtag != null ) {
+            urlString.append("&wait_for_change=true&timeout_sec=").append(WAIT_FOR_CHANGE_TIMEOUT_SECONDS)
+                    .append("&last_etag=").append(URLEncoder.encode(currentEtag, StandardCharsets.UTF_8.toString()));
+        }
+        HttpResult result = transport.execute(new HttpCall(HttpCall.METADATA_ENDPOINT, "GET", urlString.toString())
+                .header("Metadata-Flavor", "Google")
+                .acceptGzip());
+        if( result.statusCode != 200 )
+            throw new HttpStatusException("Metadata server Response in Error: "+ result.statusCode, result.statusCode, RetryPolicy.parseRetryAfter(result.getHeader("Retry-After")));
+        String newEtag = result.getHeader("ETag");
+        byte[] current = this.encoded;
+        if( currentEtag != null && currentEtag.equals(newEtag) && current != null ) {
+            return current; //unchanged, what we already hold is the answer
+        }
+        JsonObject fetchedTree;
+        try (Reader reader = result.getBodyReader()) {
+            fetchedTree = gson.fromJson(reader, JsonObject.class);
+        }
+        for( String scope : new String[]{ "instance", "project" } )
+            if( fetchedTree != null && fetchedTree.has(scope) && fetchedTree.get(scope).isJsonObject() )
+                fetchedTree.getAsJsonObject(scope).remove("attributes");
+        return ((newEtag == null ? "" : newEtag) +"\n"+ fetchedTree).getBytes(StandardCharsets.UTF_8);
+    }
+
+    public boolean isLoaded() {
+        return tree != null;
+    }
+
+    public String getRootUrl() {
+        return rootUrl;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public String getProjectId() {
+        return getString("project/projectId");
+    }
+
+    public String getInstanceName() {
+        return getString("instance/name");
+    }
+
+    public String getZone() {
+        String zonePath = getString("instance/zone");
+        return zonePath == null ? null : zonePath.substring(zonePath.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Look up a value in the metadata tree by its slash separated path, using the camelCase names of the recursive response
+     */
+    public String getString( String path ) {
+        JsonElement element = tree;
+        for( String part : path.split("/") ) {
+            if( element == null || !element.isJsonObject() ) return null;
+            element = element.getAsJsonObject().get(part);
+        }
+        if( element == null || element.isJsonNull() ) return null;
+        return element.isJsonPrimitive() ? element.getAsString() : element.toString();
+    }
+
+    /**
+     * Instance facts only the metadata server knows, offered as GCP|Metadata|* tags; custom attributes are left out on purpose,
+     * they routinely hold startup scripts and ssh keys
+     */
+    public Map<String,String> getMetadataTags() {
+        Map<String,String> tags = new TreeMap<>();
+        if( tree == null ) return tags;
+        putIfPresent(tags, "GCP|Metadata|hostname", getString("instance/hostname"));
+        putIfPresent(tags, "GCP|Metadata|image", getString("instance/image"));
+        putIfPresent(tags, "GCP|Metadata|preemptible", getString("instance/scheduling/preemptible"));
+        putIfPresent(tags, "GCP|Metadata|projectId", getProjectId());
+        putIfPresent(tags, "GCP|Metadata|numericProjectId", getString("project/numericProjectId"));
+        JsonElement interfaces = tree.has("instance") ? tree.getAsJsonObject("instance").get("networkInterfaces") : null;
+        if( interfaces != null && interfaces.isJsonArray() ) {
+            JsonArray array = interfaces.getAsJsonArray();
+            for( int i = 0; i < array.size(); i++ ) {
+                if( !array.get(i).isJsonObject() ) continue;
+                JsonObject networkInterface = array.get(i).getAsJsonObject();
+                if( networkInterface.has("ip") )
+                    putIfPresent(tags, "GCP|Metadata|nic"+ i +"|ip", networkInterface.get("ip").getAsString());
+                if( networkInterface.has("network") )
+                    putIfPresent(tags, "GCP|Metadata|nic"+ i +"|network", networkInterface.get("network").getAsString());
+            }
+        }
+        return tags;
+    }
+
+    private void putIfPresent( Map<String,String> tags, String key, String value ) {
+        if( value != null && !value.isEmpty() ) tags.put(key, value);
+    }
+}
@@ -0,0 +1,87 @@
+package com.singularity.ee.service.tagging.gcp;
+
+import com.singularity.ee.agent.util.log4j.ADLoggerFactory;
+import com.singularity.ee.agent.util.log4j.IADLogger;
+import com.singularity.ee.service.tagging.exception.HttpStatusException;
+import com.singularity.ee.service.tagging.model.GCEInstance;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Splits the instance tag fields into two sources with their own lifetimes. The static fields, GCEInstance.STATIC_TAG_FIELDS,
+ * are read once and kept until their TTL passes, every other fetch asks Compute only for the dynamic fields, status,
+ * labels and the like, plus the fingerprints, and the kept static fields are copied into what comes back.
+ * Metadata tags are a third source, the metadata server already only sends them again when they change.
+ */
+public class TieredInstanceFetcher {
+    private static final IADLogger logger = ADLoggerFactory.getLogger((String)"com.singularity.dynamicservice.tagging.TieredInstanceFetcher");
+    public static final long STATIC_FOREVER = 0;
+
+    private final GCEInstanceParser fullParser;
+    private final GCEInstanceParser dynamicParser; //null when no static field is tagged, every fetch is then a full one
+    private GCEInstance staticInstance;
+    private long staticCapturedMillis;
+    private final AtomicLong fullFetchCount = new AtomicLong();
+    private final AtomicLong dynamicFetchCount = new AtomicLong();
+
+    public interface BodyFetcher {
+        byte[] fetch( String fieldMask ) throws IOException, HttpStatusException;
+    }
+
+    public TieredInstanceFetcher( GCEInstanceParser fullParser ) {
+        this.fullParser = fullParser;
+        Set<String> staticFields = new HashSet<>(Arrays.asList(GCEInstance.STATIC_TAG_FIELDS));
+        List<String> dynamicFields = new ArrayList<>();
+        for( String field : fullParser.getTagFields() )
+            if( !staticFields.contains(field) ) dynamicFields.add(field);
+        this.dynamicParser = dynamicFields.size() == fullParser.getTagFields().length ? null : new GCEInstanceParser(dynamicFields.toArray(new String[0]));
+    }
+
+    /**
+     * @param staticTtlMillis how long the static fields are kept, STATIC_FOREVER keeps them for the life of this fetcher
+     */
+    public synchronized GCEInstance fetch( BodyFetcher bodyFetcher, long staticTtlMillis ) throws IOException, HttpStatusException {
+        boolean staticStale = staticInstance == null
+                || (staticTtlMillis != STATIC_FOREVER && System.currentTimeMillis() - staticCapturedMillis >= staticTtlMillis);
+        if( dynamicParser == null || staticStale ) {
+            GCEInstance instance = parse(fullParser, bodyFetcher.fetch(fullParser.getFieldMask()));
+            fullFetchCount.incrementAndGet();
+            if( dynamicParser != null ) {
+                staticInstance = instance;
+                staticCapturedMillis = System.currentTimeMillis();
+                logger.debug("Captured the static GCP instance fields, later fetches ask only for "+ dynamicParser.getFieldMask());
+            }
+            return instance;
+        }
+        GCEInstance instance = parse(dynamicParser, bodyFetcher.fetch(dynamicParser.getFieldMask()));
+        dynamicFetchCount.incrementAndGet();
+        instance.copyStaticFields(staticInstance);
+        return instance;
+    }
+
+    /**
+     * The instance identity changed, the next fetch reads the static fields again
+     */
+    public synchronized void invalidateStatic() {
+        staticInstance = null;
+    }
+
+    public long getFullFetchCount() { return fullFetchCount.get(); }
+    public long getDynamicFetchCount() { return dynamicFetchCount.get(); }
+
+    private static GCEInstance parse( GCEInstanceParser parser, byte[] body ) throws IOException {
+        try (Reader reader = new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8)) {
+            return parser.parse(reader);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.singularity.ee.service.tagging.http;
+
+import com.singularity.ee.agent.util.log4j.ADLoggerFactory;
+import com.singularity.ee.agent.util.log4j.IADLogger;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per endpoint circuit breaker, after failureThreshold consecutive failures the endpoint is left alone for openMillis,
+ * then a single probe request is let through; its outcome closes the circuit or opens it again.
+ * A server supplied Retry-After longer than we are willing to sleep also opens the circuit until that time.
+ */
+public class CircuitBreaker {
+    private static final IADLogger logger = ADLoggerFactory.getLogger((String)"com.singularity.dynamicservice.tagging.CircuitBreaker");
+
+    public enum State {
+        CLOSED(0), HALF_OPEN(1), OPEN(2);
+
+        public final int metricValue;
+
+        State( int metricValue ) {
+            this.metricValue = metricValue;
+        }
+    }
+
+    private final String endpoint;
+    private final int failureThreshold;
+    private final long openMillis;
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openUntil = 0;
+    private boolean probeInFlight = false;
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong openedCount = new AtomicLong();
+
+    public CircuitBreaker( String endpoint, int failureThreshold, long openMillis ) {
+        this.endpoint = endpoint;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    public synchronized boolean allowRequest() {
+        if( state == State.OPEN && System.currentTimeMillis() >= openUntil ) {
+            state = State.HALF_OPEN;
+            probeInFlight = false;
+        }
+        if( state == State.CLOSED ) return true;
+        if( state == State.HALF_OPEN && !probeInFlight ) {
+            probeInFlight = true;
+            return true;
+        }
+        rejectedCount.incrementAndGet();
+        return false;
+    }
+
+    public synchronized void recordSuccess() {
+        if( state != State.CLOSED ) logger.info("Circuit for "+ endpoint +" is closed again");
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        probeInFlight = false;
+    }
+
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+        if( state == State.HALF_OPEN || consecutiveFailures >= failureThreshold )
+            open(System.currentTimeMillis() + openMillis);
+    }
+
+    /**
+     * The call failed before the endpoint answered it, nothing is learned about the endpoint, a half open probe slot
+     * is handed back for the next caller
+     */
+    public synchronized void releaseProbe() {
+        probeInFlight = false;
+    }
+
+    /**
+     * Stop calling this endpoint until the given time, used when the server asks for more patience than a retry can give
+     */
+    public synchronized void openUntil( long until ) {
+        if( state != State.OPEN || until > openUntil ) open(until);
+    }
+
+    private void open( long until ) {
+        if( state != State.OPEN ) {
+            openedCount.incrementAndGet();
+            logger.warn(String.format("Circuit for %s is open after %d consecutive failures, not calling it for %d seconds", endpoint, consecutiveFailures, (until - System.currentTimeMillis()) / 1000));
+        }
+        state = State.OPEN;
+        openUntil = until;
+        probeInFlight = false;
+    }
+
+    public String getEndpoint() { return endpoint; }
+    public synchronized State getState() { return state; }
+    public synchronized long getOpenUntil() { return openUntil; }
+    public synchronized int getConsecutiveFailures() { return consecutiveFailures; }
+    public long getRejectedCount() { return rejectedCount.get(); }
+    public long getOpenedCount() { return openedCount.get(); }
+}
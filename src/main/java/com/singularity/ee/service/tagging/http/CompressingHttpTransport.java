@@ -0,0 +1,137 @@
+package com.singularity.ee.service.tagging.http;
+
+import com.singularity.ee.agent.util.log4j.ADLoggerFactory;
+import com.singularity.ee.agent.util.log4j.IADLogger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Adds gzip on top of another transport.
+ * Responses are requested gzip encoded when the call accepts it and decoded here, request bodies of at least the call's
+ * minGzipBytes, or minCompressBytes when the call does not say, are sent gzip encoded when the call allows it.
+ * An endpoint that answers a gzip body with 415, or with a 400 whose body names the content encoding, is remembered as
+ * not supporting it and the request is sent again uncompressed. Any other 400 is about the request itself and is returned.
+ */
+public class CompressingHttpTransport implements HttpTransport {
+    private static final IADLogger logger = ADLoggerFactory.getLogger((String)"com.singularity.dynamicservice.tagging.CompressingHttpTransport");
+
+    private enum GzipSupport { UNKNOWN, SUPPORTED, REJECTED }
+
+    private final HttpTransport delegate;
+    private final int minCompressBytes;
+    private final Map<String, GzipSupport> requestGzipSupport = new ConcurrentHashMap<>();
+    private final CompressionStats compressionStats = new CompressionStats();
+
+    public CompressingHttpTransport( HttpTransport delegate, int minCompressBytes ) {
+        this.delegate = delegate;
+        this.minCompressBytes = minCompressBytes;
+    }
+
+    @Override
+    public HttpResult execute( HttpCall call ) throws IOException {
+        HttpCall wireCall = call.copy();
+        if( call.acceptGzip ) wireCall.header("Accept-Encoding", "gzip");
+        GzipSupport support = requestGzipSupport.getOrDefault(call.endpoint, GzipSupport.UNKNOWN);
+        boolean compressed = false;
+        if( call.body != null ) {
+            compressionStats.requestBytesRaw.addAndGet(call.body.length);
+            int minBytes = call.minGzipBytes >= 0 ? call.minGzipBytes : minCompressBytes;
+            if( call.gzipRequestBody && call.body.length >= minBytes && support != GzipSupport.REJECTED ) {
+                wireCall.body = gzip(call.body);
+                wireCall.header("Content-Encoding", "gzip");
+                compressed = true;
+            }
+        }
+
+        HttpResult result = decode(send(wireCall));
+        if( compressed ) {
+            if( result.statusCode == 415 || (result.statusCode == 400 && namesContentEncoding(result)) ) {
+                logger.info("Endpoint "+ call.endpoint +" rejected a gzip request body with "+ result.statusCode +", sending uncompressed from now on");
+                requestGzipSupport.put(call.endpoint, GzipSupport.REJECTED);
+                compressionStats.gzipFallbacks.incrementAndGet();
+                HttpCall plainCall = call.copy();
+                if( call.acceptGzip ) plainCall.header("Accept-Encoding", "gzip");
+                result = decode(send(plainCall));
+            } else if( result.statusCode < 400 && support == GzipSupport.UNKNOWN ) {
+                requestGzipSupport.put(call.endpoint, GzipSupport.SUPPORTED);
+            }
+        }
+        return result;
+    }
+
+    public CompressionStats getCompressionStats() {
+        return compressionStats;
+    }
+
+    @Override
+    public Map<String, LatencyStats> getLatencyStats() {
+        return delegate.getLatencyStats();
+    }
+
+    @Override
+    public void abort() {
+        delegate.abort();
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    private HttpResult send( HttpCall wireCall ) throws IOException {
+        if( wireCall.body != null ) compressionStats.requestBytesWire.addAndGet(wireCall.body.length);
+        return delegate.execute(wireCall);
+    }
+
+    /**
+     * A 400 is only taken as a gzip rejection when the error says so, a bad request body must not turn compression off
+     */
+    private static boolean namesContentEncoding( HttpResult result ) {
+        String body = result.getBodyAsString().toLowerCase(Locale.ROOT);
+        return body.contains("gzip") || body.contains("content-encoding") || body.contains("content encoding");
+    }
+
+    private HttpResult decode( HttpResult result ) throws IOException {
+        compressionStats.responseBytesWire.addAndGet(result.body.length);
+        String contentEncoding = result.getHeader("Content-Encoding");
+        if( contentEncoding == null || !contentEncoding.trim().equalsIgnoreCase("gzip") || result.body.length == 0 ) {
+            compressionStats.responseBytesDecoded.addAndGet(result.body.length);
+            return result;
+        }
+        byte[] decoded = gunzip(result.body);
+        compressionStats.responseBytesDecoded.addAndGet(decoded.length);
+        HttpResult decodedResult = new HttpResult(result.statusCode, decoded, result.latencyNanos);
+        for( Map.Entry<String, String> header : result.getHeaders().entrySet() ) {
+            if( !header.getKey().equals("content-encoding") && !header.getKey().equals("content-length") )
+                decodedResult.addHeader(header.getKey(), header.getValue());
+        }
+        return decodedResult;
+    }
+
+    private static byte[] gzip( byte[] data ) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+        try (GZIPOutputStream gzip = new GZIPOutputStream(output)) {
+            gzip.write(data);
+        }
+        return output.toByteArray();
+    }
+
+    private static byte[] gunzip( byte[] data ) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(data.length * 4);
+        try (InputStream gzip = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = gzip.read(buffer)) != -1)
+                output.write(buffer, 0, read);
+        }
+        return output.toByteArray();
+    }
+}
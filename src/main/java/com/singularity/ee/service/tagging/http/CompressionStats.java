@@ -0,0 +1,14 @@
+package com.singularity.ee.service.tagging.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running byte counts before and after compression, for both directions, so the saving on the wire can be reported
+ */
+public class CompressionStats {
+    public final AtomicLong requestBytesRaw = new AtomicLong();
+    public final AtomicLong requestBytesWire = new AtomicLong();
+    public final AtomicLong responseBytesWire = new AtomicLong();
+    public final AtomicLong responseBytesDecoded = new AtomicLong();
+    public final AtomicLong gzipFallbacks = new AtomicLong();
+}
@@ -0,0 +1,76 @@
+package com.singularity.ee.service.tagging.http;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One outbound request, the endpoint name picks the timeouts and the latency bucket it is recorded under
+ */
+public class HttpCall {
+    public static final String METADATA_ENDPOINT = "metadata";
+    public static final String COMPUTE_ENDPOINT = "compute";
+    public static final String CONTROLLER_ENDPOINT = "controller";
+
+    public final String endpoint;
+    public final String method;
+    public final String url;
+    public final Map<String, String> headers = new LinkedHashMap<>();
+    public byte[] body;
+    public String contentType;
+    public boolean acceptGzip = false;
+    public boolean gzipRequestBody = false;
+    public int minGzipBytes = -1; //smallest body sent gzip encoded, -1 for the transport's own threshold
+
+    public HttpCall( String endpoint, String method, String url ) {
+        this.endpoint = endpoint;
+        this.method = method;
+        this.url = url;
+    }
+
+    public HttpCall header( String name, String value ) {
+        this.headers.put(name, value);
+        return this;
+    }
+
+    public HttpCall body( byte[] body, String contentType ) {
+        this.body = body;
+        this.contentType = contentType;
+        return this;
+    }
+
+    /**
+     * Ask for a gzip response, decoded again by CompressingHttpTransport before the caller sees it
+     */
+    public HttpCall acceptGzip() {
+        this.acceptGzip = true;
+        return this;
+    }
+
+    /**
+     * Allow the body to be sent gzip encoded if it is large enough and the endpoint has not rejected that before
+     */
+    public HttpCall gzipRequestBody() {
+        this.gzipRequestBody = true;
+        return this;
+    }
+
+    /**
+     * Allow the body to be sent gzip encoded if it is at least minBytes and the endpoint has not rejected that before
+     */
+    public HttpCall gzipRequestBody( int minBytes ) {
+        this.gzipRequestBody = true;
+        this.minGzipBytes = minBytes;
+        return this;
+    }
+
+    public HttpCall copy() {
+        HttpCall copy = new HttpCall(endpoint, method, url);
+        copy.headers.putAll(headers);
+        copy.body = body;
+        copy.contentType = contentType;
+        copy.acceptGzip = acceptGzip;
+        copy.gzipRequestBody = gzipRequestBody;
+        copy.minGzipBytes = minGzipBytes;
+        return copy;
+    }
+}
@@ -0,0 +1,50 @@
+package com.singularity.ee.service.tagging.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class HttpResult {
+    public final int statusCode;
+    public final byte[] body;
+    public final long latencyNanos;
+    private final Map<String, String> headers = new TreeMap<>();
+
+    public HttpResult( int statusCode, byte[] body, long latencyNanos ) {
+        this.statusCode = statusCode;
+        this.body = body == null ? new byte[0] : body;
+        this.latencyNanos = latencyNanos;
+    }
+
+    public HttpResult addHeader( String name, String value ) {
+        String key = name.toLowerCase(Locale.ROOT);
+        if( !headers.containsKey(key) ) headers.put(key, value);
+        return this;
+    }
+
+    /**
+     * First value of the named header, names are case insensitive
+     */
+    public String getHeader( String name ) {
+        return headers.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * All headers, keyed by lower case name
+     */
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    public String getBodyAsString() {
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    public Reader getBodyReader() {
+        return new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8);
+    }
+}
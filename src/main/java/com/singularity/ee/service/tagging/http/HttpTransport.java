@@ -0,0 +1,28 @@
+package com.singularity.ee.service.tagging.http;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * The one way the tagging task talks HTTP, to the metadata server, Compute and the controller.
+ * PooledHttpTransport is the real one; tests and local harnesses can hand the task any other implementation.
+ */
+public interface HttpTransport {
+
+    /**
+     * Send the request and read the whole response, any status code is a result, only failing to talk to the server is an IOException
+     */
+    HttpResult execute( HttpCall call ) throws IOException;
+
+    /**
+     * Latency of the calls made so far, keyed by HttpCall endpoint name
+     */
+    Map<String, LatencyStats> getLatencyStats();
+
+    /**
+     * Abort every request in flight, their execute calls fail with an IOException; the transport stays usable
+     */
+    void abort();
+
+    void close();
+}
@@ -0,0 +1,47 @@
+package com.singularity.ee.service.tagging.http;
+
+import java.util.Arrays;
+
+/**
+ * Count, total and max of request latencies for one endpoint, plus responses by status class, drained by the metric task once per report
+ */
+public class LatencyStats {
+    public static final int IO_ERROR = -1;
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+    private final long[] statusClassCounts = new long[6]; //index 1-5 for 1xx-5xx, 0 for requests that got no response
+
+    /**
+     * @param statusCode the response status, or IO_ERROR if the request failed without one
+     */
+    public synchronized void record( long latencyNanos, int statusCode ) {
+        count++;
+        totalNanos += latencyNanos;
+        if( latencyNanos > maxNanos ) maxNanos = latencyNanos;
+        int statusClass = statusCode / 100;
+        statusClassCounts[statusClass >= 1 && statusClass <= 5 ? statusClass : 0]++;
+    }
+
+    /**
+     * @return a copy of the stats so far, and start counting again from zero
+     */
+    public synchronized LatencyStats drain() {
+        LatencyStats snapshot = new LatencyStats();
+        snapshot.count = count;
+        snapshot.totalNanos = totalNanos;
+        snapshot.maxNanos = maxNanos;
+        System.arraycopy(statusClassCounts, 0, snapshot.statusClassCounts, 0, statusClassCounts.length);
+        count = 0;
+        totalNanos = 0;
+        maxNanos = 0;
+        Arrays.fill(statusClassCounts, 0);
+        return snapshot;
+    }
+
+    public synchronized long getCount() { return count; }
+    public synchronized long getAverageMillis() { return count == 0 ? 0 : totalNanos / count / 1000000; }
+    public synchronized long getMaxMillis() { return maxNanos / 1000000; }
+    public synchronized long getStatusClassCount( int statusClass ) { return statusClassCounts[statusClass]; }
+    public synchronized long getIoErrorCount() { return statusClassCounts[0]; }
+}
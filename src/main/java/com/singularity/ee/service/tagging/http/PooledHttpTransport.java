@@ -0,0 +1,201 @@
+package com.singularity.ee.service.tagging.http;
+
+import com.singularity.ee.agent.util.log4j.ADLoggerFactory;
+import com.singularity.ee.agent.util.log4j.IADLogger;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.apache.http.impl.conn.SystemDefaultRoutePlanner;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Apache HttpClient transport with one pool of persistent connections for all of the task's endpoints,
+ * connect and read timeouts per endpoint, a small DNS cache and latency recorded per endpoint.
+ * Response bodies are always read to the end, which is what lets the connection go back to the pool.
+ */
+public class PooledHttpTransport implements HttpTransport {
+    private static final IADLogger logger = ADLoggerFactory.getLogger((String)"com.singularity.dynamicservice.tagging.PooledHttpTransport");
+    private static final long DNS_CACHE_TTL_MILLIS = 60000;
+    private static final long IDLE_CONNECTION_SECONDS = 120;
+    private static final String ENDPOINT_ATTRIBUTE = "tagging.endpoint";
+
+    private final CloseableHttpClient httpClient;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final Map<String, RequestConfig> endpointConfigs = new ConcurrentHashMap<>();
+    private final Map<String, LatencyStats> latencyStats = new ConcurrentHashMap<>();
+    private final Set<HttpUriRequest> inFlight = ConcurrentHashMap.newKeySet();
+    private final RequestConfig defaultConfig;
+
+    public PooledHttpTransport() {
+        this(4);
+    }
+
+    /**
+     * @param maxPerRoute connections kept per host, at least the requests one caller sends to the same endpoint at once
+     */
+    public PooledHttpTransport( int maxPerRoute ) {
+        Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", SSLConnectionSocketFactory.getSocketFactory())
+                .build();
+        this.connectionManager = new PoolingHttpClientConnectionManager(socketFactoryRegistry, null, null, new CachingDnsResolver(), IDLE_CONNECTION_SECONDS, TimeUnit.SECONDS);
+        this.connectionManager.setMaxTotal(Math.max(16, 2 * maxPerRoute));
+        this.connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        this.connectionManager.setValidateAfterInactivity(10000);
+        this.defaultConfig = requestConfig(5000, 30000);
+        setTimeouts(HttpCall.METADATA_ENDPOINT, 1000, 5000);
+        setTimeouts(HttpCall.COMPUTE_ENDPOINT, 5000, 30000);
+        setTimeouts(HttpCall.CONTROLLER_ENDPOINT, 10000, 30000);
+        this.httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setRoutePlanner(new EndpointRoutePlanner())
+                .setDefaultRequestConfig(defaultConfig)
+                .disableAutomaticRetries() //RetryPolicy decides about retries
+                .disableCookieManagement()
+                .disableContentCompression()
+                .evictExpiredConnections()
+                .evictIdleConnections(IDLE_CONNECTION_SECONDS, TimeUnit.SECONDS)
+                .setUserAgent("AppDynamics-GCPTaggingService")
+                .build();
+    }
+
+    public void setTimeouts( String endpoint, int connectTimeoutMillis, int readTimeoutMillis ) {
+        endpointConfigs.put(endpoint, requestConfig(connectTimeoutMillis, readTimeoutMillis));
+    }
+
+    @Override
+    public HttpResult execute( HttpCall call ) throws IOException {
+        RequestBuilder requestBuilder = RequestBuilder.create(call.method).setUri(call.url)
+                .setConfig(endpointConfigs.getOrDefault(call.endpoint, defaultConfig));
+        for( Map.Entry<String, String> header : call.headers.entrySet() )
+            requestBuilder.addHeader(header.getKey(), header.getValue());
+        if( call.body != null )
+            requestBuilder.setEntity(new ByteArrayEntity(call.body, call.contentType == null ? ContentType.APPLICATION_JSON : ContentType.parse(call.contentType)));
+
+        HttpUriRequest request = requestBuilder.build();
+        inFlight.add(request);
+        HttpClientContext context = HttpClientContext.create();
+        context.setAttribute(ENDPOINT_ATTRIBUTE, call.endpoint);
+        long start = System.nanoTime();
+        try (CloseableHttpResponse response = httpClient.execute(request, context)) {
+            HttpEntity entity = response.getEntity();
+            byte[] body = entity == null ? null : EntityUtils.toByteArray(entity);
+            long latency = System.nanoTime() - start;
+            int statusCode = response.getStatusLine().getStatusCode();
+            latencyStats.computeIfAbsent(call.endpoint, k -> new LatencyStats()).record(latency, statusCode);
+            HttpResult result = new HttpResult(statusCode, body, latency);
+            for( Header header : response.getAllHeaders() )
+                result.addHeader(header.getName(), header.getValue());
+            return result;
+        } catch (IOException e) {
+            latencyStats.computeIfAbsent(call.endpoint, k -> new LatencyStats()).record(System.nanoTime() - start, LatencyStats.IO_ERROR);
+            throw e;
+        } finally {
+            inFlight.remove(request);
+        }
+    }
+
+    @Override
+    public void abort() {
+        for( HttpUriRequest request : inFlight ) {
+            logger.debug("Aborting request in flight: "+ request.getMethod() +" "+ request.getURI().getHost());
+            request.abort();
+        }
+    }
+
+    @Override
+    public Map<String, LatencyStats> getLatencyStats() {
+        return new HashMap<>(latencyStats);
+    }
+
+    @Override
+    public void close() {
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            logger.debug("Error closing http client: "+ e.getMessage());
+        }
+        connectionManager.shutdown();
+    }
+
+    private static RequestConfig requestConfig( int connectTimeoutMillis, int readTimeoutMillis ) {
+        return RequestConfig.custom()
+                .setConnectTimeout(connectTimeoutMillis)
+                .setConnectionRequestTimeout(connectTimeoutMillis)
+                .setSocketTimeout(readTimeoutMillis)
+                .build();
+    }
+
+    /**
+     * Compute and the controller go through the JVM's proxy settings, http(s).proxyHost and http.nonProxyHosts, as they did
+     * with HttpURLConnection; the metadata server is link local and never behind a proxy, its calls always go direct
+     */
+    private static class EndpointRoutePlanner extends SystemDefaultRoutePlanner {
+        EndpointRoutePlanner() {
+            super(DefaultSchemePortResolver.INSTANCE, null); //null reads ProxySelector.getDefault() on every route
+        }
+
+        @Override
+        protected HttpHost determineProxy( HttpHost target, HttpRequest request, HttpContext context ) throws HttpException {
+            if( HttpCall.METADATA_ENDPOINT.equals(context.getAttribute(ENDPOINT_ATTRIBUTE)) ) return null;
+            return super.determineProxy(target, request, context);
+        }
+    }
+
+    /**
+     * Remembers lookups for a minute, the JVM's own cache setting varies by security manager and is often forever or never
+     */
+    private static class CachingDnsResolver implements DnsResolver {
+        private final Map<String, CachedAddress> cache = new ConcurrentHashMap<>();
+
+        private static class CachedAddress {
+            final InetAddress[] addresses;
+            final long expiresAt;
+
+            CachedAddress( InetAddress[] addresses, long expiresAt ) {
+                this.addresses = addresses;
+                this.expiresAt = expiresAt;
+            }
+        }
+
+        @Override
+        public InetAddress[] resolve( String host ) throws UnknownHostException {
+            long now = System.currentTimeMillis();
+            CachedAddress cached = cache.get(host);
+            if( cached != null && cached.expiresAt > now ) return cached.addresses;
+            InetAddress[] addresses = SystemDefaultDnsResolver.INSTANCE.resolve(host);
+            cache.put(host, new CachedAddress(addresses, now + DNS_CACHE_TTL_MILLIS));
+            return addresses;
+        }
+    }
+}
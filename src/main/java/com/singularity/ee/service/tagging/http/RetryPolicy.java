@@ -0,0 +1,136 @@
+package com.singularity.ee.service.tagging.http;
+
+import com.singularity.ee.agent.util.log4j.ADLoggerFactory;
+import com.singularity.ee.agent.util.log4j.IADLogger;
+import com.singularity.ee.service.tagging.exception.CircuitOpenException;
+import com.singularity.ee.service.tagging.exception.CommunicationErrorException;
+import com.singularity.ee.service.tagging.exception.HttpStatusException;
+
+import java.io.IOException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared retry policy for the metadata server, Compute and controller calls.
+ * Retryable failures are I/O errors and 408, 429, 500, 502, 503 and 504 responses, they are retried after a full jitter
+ * exponential delay, random between zero and base * 2^attempt capped at maxDelayMillis, so a fleet of agents that failed
+ * together does not come back together. A Retry-After header is honoured as a floor for the delay, and when it asks for more
+ * than maxDelayMillis we stop retrying and open the endpoint's circuit until then.
+ * A non retryable status counts as a success for the circuit, the endpoint is up, but a failure before any request went
+ * out leaves the circuit as it was.
+ */
+public class RetryPolicy {
+    private static final IADLogger logger = ADLoggerFactory.getLogger((String)"com.singularity.dynamicservice.tagging.RetryPolicy");
+
+    public interface Attempt<T> {
+        T call() throws Exception;
+    }
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final AtomicLong retryCount = new AtomicLong();
+
+    public RetryPolicy( int maxAttempts, long baseDelayMillis, long maxDelayMillis ) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    public <T> T execute( CircuitBreaker circuitBreaker, Attempt<T> attempt ) throws CommunicationErrorException {
+        for( int attemptNumber = 0; ; attemptNumber++ ) {
+            if( !circuitBreaker.allowRequest() )
+                throw new CircuitOpenException("Circuit for "+ circuitBreaker.getEndpoint() +" is open, not calling it");
+            try {
+                T result = attempt.call();
+                circuitBreaker.recordSuccess();
+                return result;
+            } catch (Exception exception) {
+                if( Thread.currentThread().isInterrupted() ) //cancelled, not a failure of the endpoint
+                    throw new CommunicationErrorException("Call to "+ circuitBreaker.getEndpoint() +" cancelled: "+ exception.getMessage(), exception);
+                boolean retryable = isRetryable(exception);
+                if( retryable ) {
+                    circuitBreaker.recordFailure();
+                } else if( endpointResponded(exception) ) {
+                    circuitBreaker.recordSuccess(); //the endpoint answered, it is our request it did not like
+                } else {
+                    circuitBreaker.releaseProbe(); //failed before anything was sent, rate limiter, token or serialization
+                }
+                long retryAfter = exception instanceof HttpStatusException ? ((HttpStatusException) exception).getRetryAfterMillis() : -1;
+                if( retryAfter > maxDelayMillis ) {
+                    circuitBreaker.openUntil(System.currentTimeMillis() + retryAfter);
+                    throw asCommunicationError(circuitBreaker, exception);
+                }
+                if( !retryable || attemptNumber + 1 >= maxAttempts )
+                    throw asCommunicationError(circuitBreaker, exception);
+                long delay = Math.max(backoffDelay(attemptNumber), retryAfter);
+                retryCount.incrementAndGet();
+                logger.debug(String.format("Call to %s failed with '%s', retry %d in %d ms", circuitBreaker.getEndpoint(), exception.getMessage(), attemptNumber + 1, delay));
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException interruptedException) {
+                    Thread.currentThread().interrupt();
+                    throw new CommunicationErrorException("Interrupted waiting to retry "+ circuitBreaker.getEndpoint(), interruptedException);
+                }
+            }
+        }
+    }
+
+    public long backoffDelay( int attemptNumber ) {
+        long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attemptNumber, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    public static boolean isRetryable( Throwable exception ) {
+        if( exception instanceof CircuitOpenException ) return false;
+        if( exception instanceof HttpStatusException ) return isRetryableStatus(((HttpStatusException) exception).getStatusCode());
+        if( exception instanceof IOException ) return true;
+        return exception.getCause() != null && exception.getCause() != exception && isRetryable(exception.getCause());
+    }
+
+    /**
+     * True when the failure carries a status code, so the endpoint was reached and answered
+     */
+    public static boolean endpointResponded( Throwable exception ) {
+        for( Throwable cause = exception; cause != null; cause = cause.getCause() == cause ? null : cause.getCause() )
+            if( cause instanceof HttpStatusException ) return true;
+        return false;
+    }
+
+    public static boolean isRetryableStatus( int statusCode ) {
+        switch (statusCode) {
+            case 408: case 429: case 500: case 502: case 503: case 504: return true;
+            default: return false;
+        }
+    }
+
+    /**
+     * Parse a Retry-After header, either delta seconds or an HTTP date
+     * @return milliseconds to wait, or -1 when absent or unreadable
+     */
+    public static long parseRetryAfter( String retryAfter ) {
+        if( retryAfter == null || retryAfter.trim().isEmpty() ) return -1;
+        String value = retryAfter.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException notSeconds) {
+            try {
+                return Math.max(0, ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli() - System.currentTimeMillis());
+            } catch (DateTimeParseException notADate) {
+                return -1;
+            }
+        }
+    }
+
+    private CommunicationErrorException asCommunicationError( CircuitBreaker circuitBreaker, Exception exception ) {
+        if( exception instanceof CommunicationErrorException ) return (CommunicationErrorException) exception;
+        return new CommunicationErrorException("Error calling "+ circuitBreaker.getEndpoint() +": "+ exception.getMessage(), exception);
+    }
+}
@@ -0,0 +1,69 @@
+package com.singularity.ee.service.tagging.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client side token bucket for controller calls.
+ * Permits refill continuously at ratePerMinute up to burst, a caller that finds the bucket empty waits for the next permit,
+ * up to maxWaitMillis, so a sync that needs several calls is smoothed out instead of spiking the controller.
+ */
+public class TokenBucket {
+    private double ratePerMilli;
+    private double burst;
+    private double available;
+    private long lastRefill;
+    private final AtomicLong throttledCount = new AtomicLong();
+
+    public TokenBucket( long ratePerMinute, long burst ) {
+        this.lastRefill = System.nanoTime();
+        configure(ratePerMinute, burst);
+        this.available = this.burst;
+    }
+
+    /**
+     * Change the rate and burst in place, permits already in the bucket are kept up to the new burst
+     */
+    public synchronized void configure( long ratePerMinute, long burst ) {
+        refill();
+        this.ratePerMilli = Math.max(1, ratePerMinute) / 60000.0;
+        this.burst = Math.max(1, burst);
+        this.available = Math.min(this.available, this.burst);
+    }
+
+    /**
+     * @return true once a permit was taken, false if none became available within maxWaitMillis
+     */
+    public boolean acquire( long maxWaitMillis ) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + maxWaitMillis;
+        boolean throttled = false;
+        while (true) {
+            long waitMillis;
+            synchronized (this) {
+                refill();
+                if( available >= 1 ) {
+                    available -= 1;
+                    return true;
+                }
+                waitMillis = (long) Math.ceil((1 - available) / ratePerMilli);
+            }
+            if( !throttled ) {
+                throttledCount.incrementAndGet();
+                throttled = true;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if( remaining <= 0 ) return false;
+            Thread.sleep(Math.max(1, Math.min(waitMillis, remaining)));
+        }
+    }
+
+    public long getThrottledCount() {
+        return throttledCount.get();
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        double elapsedMillis = (now - lastRefill) / 1000000.0;
+        lastRefill = now;
+        available = Math.min(burst, available + elapsedMillis * ratePerMilli);
+    }
+}
@@ -4,4 +4,21 @@ public class AccessToken {
     public String access_token = null;
     public int expires_in = 0;
     public transient long expires_at = 0;
+
+    /**
+     * Stamp the absolute expiration time from the relative expires_in seconds the server returned
+     * @param issuedAt time the token response was received, in epoch millis
+     */
+    public AccessToken markIssued( long issuedAt ) {
+        this.expires_at = issuedAt + (expires_in * 1000L);
+        return this;
+    }
+
+    public boolean isExpired( long now ) {
+        return access_token == null || now >= expires_at;
+    }
+
+    public boolean isExpiringWithin( long now, long windowMillis ) {
+        return access_token == null || now + windowMillis >= expires_at;
+    }
 }
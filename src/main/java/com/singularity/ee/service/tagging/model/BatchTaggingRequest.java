@@ -3,9 +3,9 @@ package com.singularity.ee.service.tagging.model;
 import com.singularity.ee.agent.appagent.kernel.spi.IConfigurationChannel;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 public class BatchTaggingRequest {
     public String entityType;
@@ -16,6 +16,7 @@ public class BatchTaggingRequest {
 
     public BatchTaggingRequest( EntityType type ) {
         entityType = type.convertToAPIEntityType();
+        cmdbType = type;
         this.entities = new ArrayList<>();
     }
 
@@ -25,21 +26,29 @@ public class BatchTaggingRequest {
     }
 
     public BatchTaggingRequest (GCEInstance gceInstance, IConfigurationChannel iConfigChannel) {
-        this.entityType = EntityType.Node.convertToAPIEntityType();
-        Map<String,String> map = new HashMap<>();
-        map.put("GCP|id", gceInstance.id);
-        map.put("GCP|name", gceInstance.name);
-        map.put("GCP|description", gceInstance.description);
-        map.put("GCP|zone", gceInstance.zone);
-        map.put("GCP|machineType", gceInstance.machineType);
-        map.put("GCP|status", gceInstance.status);
-        map.put("GCP|statusMessage", gceInstance.statusMessage);
-        map.put("GCP|selfLink", gceInstance.selfLink);
-        map.put("GCP|cpuPlatform", gceInstance.cpuPlatform);
-        map.put("GCP|reservationAffinity", gceInstance.reservationAffinity);
-        for(Map.Entry entry : gceInstance.labels.entrySet())
-            map.put("GCP|Label|"+entry.getKey(), (String) entry.getValue());
-        addEntity(iConfigChannel.getComponentNodeName(), iConfigChannel.getNodeID(), map);
+        this(buildTagMap(gceInstance), iConfigChannel);
+    }
+
+    public BatchTaggingRequest (Map<String,String> tags, IConfigurationChannel iConfigChannel) {
+        this(EntityType.Node);
+        addEntity(iConfigChannel.getComponentNodeName(), iConfigChannel.getNodeID(), tags);
+    }
+
+    /**
+     * Flatten the instance into the GCP|* tags we send, sorted by key so the result is stable from one cycle to the next
+     */
+    public static Map<String,String> buildTagMap (GCEInstance gceInstance) {
+        return buildTagMap(gceInstance, GCEInstance.DEFAULT_TAG_FIELDS);
+    }
+
+    public static Map<String,String> buildTagMap (GCEInstance gceInstance, String[] tagFields) {
+        Map<String,String> map = new TreeMap<>();
+        for( String field : tagFields )
+            map.put("GCP|"+ field, gceInstance.getTagField(field));
+        if( gceInstance.labels != null )
+            for(Map.Entry entry : gceInstance.labels.entrySet())
+                map.put("GCP|Label|"+entry.getKey(), (String) entry.getValue());
+        return map;
     }
 
     public void addEntity (String entityName, Long entityId, Map<String, String> tags) {
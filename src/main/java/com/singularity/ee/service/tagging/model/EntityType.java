@@ -11,7 +11,8 @@ public enum EntityType {
 
     public String convertToAPIEntityType() {
         switch(this) {
-            case Server: return "SIM_MACHINE";
+            case Server:
+            case Machine: return "SIM_MACHINE";
             case Application: return "APPLICATION";
             case Tier: return "APPLICATION_COMPONENT";
             case Node: return "APPLICATION_COMPONENT_NODE";
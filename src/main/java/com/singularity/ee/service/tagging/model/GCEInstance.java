@@ -3,6 +3,13 @@ import java.util.List;
 import java.util.Map;
 
 public class GCEInstance {
+    public static final String[] DEFAULT_TAG_FIELDS = new String[]{ "id", "name", "description", "zone", "machineType", "status",
+            "statusMessage", "selfLink", "cpuPlatform", "reservationAffinity" };
+    public static final String[] TAG_CAPABLE_FIELDS = new String[]{ "id", "creationTimestamp", "name", "description", "zone", "machineType",
+            "status", "statusMessage", "canIpForward", "selfLink", "cpuPlatform", "deletionProtection", "reservationAffinity" };
+    //fixed for as long as the VM runs, machine type and cpu platform only change across a stop and start, which restarts the agent too
+    public static final String[] STATIC_TAG_FIELDS = new String[]{ "id", "creationTimestamp", "name", "zone", "machineType", "selfLink", "cpuPlatform" };
+
     public String id;
     public String creationTimestamp;
     public String name;
@@ -20,12 +27,48 @@ public class GCEInstance {
     public Scheduling scheduling;
     public String cpuPlatform;
     public Map<String, String> labels;
+    public String labelFingerprint;
     public List<GuestAccelerator> guestAccelerators;
     public Boolean deletionProtection;
     public String reservationAffinity;
     public Tags tags;
     public String fingerprint;
 
+    /**
+     * The value of a top level scalar field by its Compute API name, these are the fields that can be mapped to GCP|<field> tags
+     */
+    public String getTagField( String field ) {
+        switch (field) {
+            case "id": return id;
+            case "creationTimestamp": return creationTimestamp;
+            case "name": return name;
+            case "description": return description;
+            case "zone": return zone;
+            case "machineType": return machineType;
+            case "status": return status;
+            case "statusMessage": return statusMessage;
+            case "canIpForward": return canIpForward == null ? null : canIpForward.toString();
+            case "selfLink": return selfLink;
+            case "cpuPlatform": return cpuPlatform;
+            case "deletionProtection": return deletionProtection == null ? null : deletionProtection.toString();
+            case "reservationAffinity": return reservationAffinity;
+            default: return null;
+        }
+    }
+
+    /**
+     * Take the STATIC_TAG_FIELDS from an earlier read of the same instance
+     */
+    public void copyStaticFields( GCEInstance from ) {
+        id = from.id;
+        creationTimestamp = from.creationTimestamp;
+        name = from.name;
+        zone = from.zone;
+        machineType = from.machineType;
+        selfLink = from.selfLink;
+        cpuPlatform = from.cpuPlatform;
+    }
+
     public static class NetworkInterface {
         public String name;
         public String network;
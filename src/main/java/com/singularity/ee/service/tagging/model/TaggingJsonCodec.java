@@ -0,0 +1,188 @@
+package com.singularity.ee.service.tagging.model;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Hand written JSON for the controller payloads, no reflection and no intermediate String.
+ * Requests are written compact, with the same field order, null omission and html safe escaping as the default Gson output,
+ * into an output buffer that is kept and reused from one request to the next.
+ * Responses are read off a streaming JsonReader, fields we do not know are skipped.
+ * GCE instances are read by GCEInstanceParser, which already works this way.
+ */
+public class TaggingJsonCodec {
+    private static final int INITIAL_BUFFER_BYTES = 8192;
+
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(INITIAL_BUFFER_BYTES);
+    private final Writer bufferWriter = new OutputStreamWriter(buffer, StandardCharsets.UTF_8);
+
+    /**
+     * @return the UTF-8 encoded request body, the codec's own buffer is reset and reused by the next call
+     */
+    public synchronized byte[] toJsonBytes( BatchTaggingRequest request ) throws IOException {
+        buffer.reset();
+        JsonWriter writer = newWriter(bufferWriter);
+        writeBatchTaggingRequest(writer, request);
+        writer.flush();
+        return buffer.toByteArray();
+    }
+
+    public static JsonWriter newWriter( Writer output ) {
+        JsonWriter writer = new JsonWriter(output);
+        writer.setHtmlSafe(true);
+        writer.setSerializeNulls(false);
+        return writer;
+    }
+
+    public static void writeBatchTaggingRequest( JsonWriter writer, BatchTaggingRequest request ) throws IOException {
+        writer.beginObject();
+        writer.name("entityType").value(request.entityType);
+        writer.name("source").value(request.source);
+        if( request.entities != null ) {
+            writer.name("entities").beginArray();
+            for( Entity entity : request.entities )
+                writeEntity(writer, entity);
+            writer.endArray();
+        }
+        writer.endObject();
+    }
+
+    public static void writeEntity( JsonWriter writer, Entity entity ) throws IOException {
+        if( entity == null ) {
+            writer.nullValue();
+            return;
+        }
+        writer.beginObject();
+        writer.name("entityName").value(entity.entityName);
+        writer.name("entityId").value(entity.entityId);
+        if( entity.tags != null ) {
+            writer.name("tags").beginArray();
+            for( Tag tag : entity.tags )
+                writeTag(writer, tag);
+            writer.endArray();
+        }
+        writer.endObject();
+    }
+
+    public static void writeTag( JsonWriter writer, Tag tag ) throws IOException {
+        if( tag == null ) {
+            writer.nullValue();
+            return;
+        }
+        writer.beginObject();
+        writer.name("key").value(tag.key);
+        writer.name("value").value(tag.value);
+        writer.endObject();
+    }
+
+    /**
+     * Controller oauth token response, expires_at is left for the caller to stamp with markIssued
+     */
+    public static AccessToken readAccessToken( Reader input ) throws IOException {
+        JsonReader reader = new JsonReader(input);
+        AccessToken accessToken = new AccessToken();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if( reader.peek() == JsonToken.NULL ) {
+                reader.skipValue();
+                continue;
+            }
+            switch (name) {
+                case "access_token": accessToken.access_token = reader.nextString(); break;
+                case "expires_in": accessToken.expires_in = reader.nextInt(); break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return accessToken;
+    }
+
+    /**
+     * The controller answers tagEntitiesInBatch with one BatchResponse or an array of them, an array is folded into one
+     * response carrying all of the failures
+     * @return null for an empty body
+     */
+    public static BatchResponse readBatchResponse( Reader input ) throws IOException {
+        JsonReader reader = new JsonReader(input);
+        JsonToken first;
+        try {
+            first = reader.peek();
+        } catch (EOFException e) { //an empty or whitespace only body
+            return null;
+        }
+        if( first != JsonToken.BEGIN_ARRAY ) return readBatchResponseObject(reader);
+        BatchResponse merged = new BatchResponse();
+        merged.failure = new BatchStatus();
+        merged.failure.entityIds = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            BatchResponse response = readBatchResponseObject(reader);
+            if( response != null && response.failure != null && response.failure.entityIds != null ) {
+                merged.failure.entityIds.addAll(response.failure.entityIds);
+                merged.failure.count += response.failure.count;
+            }
+        }
+        reader.endArray();
+        return merged;
+    }
+
+    private static BatchResponse readBatchResponseObject( JsonReader reader ) throws IOException {
+        if( reader.peek() == JsonToken.NULL ) {
+            reader.nextNull();
+            return null;
+        }
+        BatchResponse response = new BatchResponse();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if( reader.peek() == JsonToken.NULL ) {
+                reader.skipValue();
+                continue;
+            }
+            switch (name) {
+                case "entityType": response.entityType = reader.nextString(); break;
+                case "success": response.success = readBatchStatus(reader); break;
+                case "failure": response.failure = readBatchStatus(reader); break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return response;
+    }
+
+    private static BatchStatus readBatchStatus( JsonReader reader ) throws IOException {
+        BatchStatus status = new BatchStatus();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if( reader.peek() == JsonToken.NULL ) {
+                reader.skipValue();
+                continue;
+            }
+            switch (name) {
+                case "count": status.count = reader.nextLong(); break;
+                case "entityIds":
+                    status.entityIds = new ArrayList<>();
+                    reader.beginArray();
+                    while (reader.hasNext())
+                        status.entityIds.add(reader.nextLong());
+                    reader.endArray();
+                    break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return status;
+    }
+}
@@ -0,0 +1,24 @@
+package com.singularity.ee.service.tagging.model;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What we persist between agent restarts, so a restart on the same instance can skip metadata discovery and redundant uploads
+ */
+public class TaggingSnapshot {
+    public static final int CURRENT_VERSION = 2; //2 added acknowledgedEntities
+
+    public int version = CURRENT_VERSION;
+    public long savedAt;
+    public String hostName;
+    public String projectId;
+    public String instanceName;
+    public String zone;
+    public String instanceFingerprint;
+    public String labelFingerprint;
+    public String tagHash;
+    public Map<String, String> acknowledgedTags;
+    public Set<String> acknowledgedEntities;
+    public String checksum;
+}
@@ -0,0 +1,95 @@
+package com.singularity.ee.service.tagging.sync;
+
+import com.singularity.ee.agent.util.log4j.ADLoggerFactory;
+import com.singularity.ee.agent.util.log4j.IADLogger;
+import com.singularity.ee.service.tagging.exception.CommunicationErrorException;
+import com.singularity.ee.service.tagging.model.BatchResponse;
+import com.singularity.ee.service.tagging.model.BatchTaggingRequest;
+import com.singularity.ee.service.tagging.model.Entity;
+import com.singularity.ee.service.tagging.model.EntityType;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sends entities of any mix of types to tagEntitiesInBatch.
+ * Entities are grouped by type, since a batch request carries a single entityType, and split into requests of at most
+ * maxEntitiesPerRequest. When the controller's BatchResponse lists failed entity ids, only those entities are sent again,
+ * counting attempts in the request's retries field, until maxRetries is reached.
+ */
+public class BatchUploader {
+    private static final IADLogger logger = ADLoggerFactory.getLogger((String)"com.singularity.dynamicservice.tagging.BatchUploader");
+
+    public interface Transport {
+        /**
+         * @return the controller's parsed response, or null if it did not send one, which is taken as all entities succeeded
+         */
+        BatchResponse send( BatchTaggingRequest request ) throws CommunicationErrorException;
+    }
+
+    private final Transport transport;
+    private final int maxEntitiesPerRequest;
+    private final int maxRetries;
+
+    public BatchUploader( Transport transport, int maxEntitiesPerRequest, int maxRetries ) {
+        this.transport = transport;
+        this.maxEntitiesPerRequest = Math.max(1, maxEntitiesPerRequest);
+        this.maxRetries = Math.max(0, maxRetries);
+    }
+
+    public static List<BatchTaggingRequest> chunk( Map<EntityType, List<Entity>> entitiesByType, int maxEntitiesPerRequest ) {
+        List<BatchTaggingRequest> requests = new ArrayList<>();
+        for( Map.Entry<EntityType, List<Entity>> entry : entitiesByType.entrySet() ) {
+            BatchTaggingRequest request = null;
+            for( Entity entity : entry.getValue() ) {
+                if( request == null || request.entities.size() >= maxEntitiesPerRequest ) {
+                    request = new BatchTaggingRequest(entry.getKey());
+                    requests.add(request);
+                }
+                request.entities.add(entity);
+            }
+        }
+        return requests;
+    }
+
+    /**
+     * @return the entities that still failed after all retries, empty when everything was tagged
+     */
+    public List<Entity> upload( Map<EntityType, List<Entity>> entitiesByType ) throws CommunicationErrorException {
+        Deque<BatchTaggingRequest> queue = new ArrayDeque<>(chunk(entitiesByType, maxEntitiesPerRequest));
+        List<Entity> failedEntities = new ArrayList<>();
+        while (!queue.isEmpty()) {
+            BatchTaggingRequest request = queue.poll();
+            BatchResponse response = transport.send(request);
+            List<Entity> failed = failedEntities(request, response);
+            if( failed.isEmpty() ) continue;
+            if( request.retries >= maxRetries ) {
+                logger.warn(String.format("Controller failed to tag %d %s entities after %d retries", failed.size(), request.entityType, request.retries));
+                failedEntities.addAll(failed);
+                continue;
+            }
+            BatchTaggingRequest retry = new BatchTaggingRequest(request.cmdbType);
+            retry.entities.addAll(failed);
+            retry.retries = request.retries + 1;
+            logger.debug(String.format("Retrying %d failed %s entities, attempt %d", failed.size(), request.entityType, retry.retries));
+            queue.add(retry);
+        }
+        return failedEntities;
+    }
+
+    private List<Entity> failedEntities( BatchTaggingRequest request, BatchResponse response ) {
+        List<Entity> failed = new ArrayList<>();
+        if( response == null || response.failure == null || response.failure.entityIds == null || response.failure.entityIds.isEmpty() )
+            return failed;
+        Set<Long> failedIds = new HashSet<>(response.failure.entityIds);
+        for( Entity entity : request.entities ) {
+            if( failedIds.contains(entity.entityId) ) failed.add(entity);
+        }
+        return failed;
+    }
+}
@@ -0,0 +1,99 @@
+package com.singularity.ee.service.tagging.sync;
+
+import com.singularity.ee.service.tagging.model.GCEInstance;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * Remembers what was last pushed to the controller successfully, so a cycle whose tags, instance fingerprint
+ * and label fingerprint all match can end without any controller traffic.
+ * Every forcePushCycles unchanged cycles a push is allowed anyway, in case the controller lost or someone edited the tags.
+ */
+public class ChangeDetector {
+    private String lastPushedTagHash;
+    private String lastPushedFingerprint;
+    private String lastPushedLabelFingerprint;
+    private long cyclesSinceLastPush = 0;
+
+    public static class State {
+        public final String tagHash;
+        public final String fingerprint;
+        public final String labelFingerprint;
+
+        public State( String tagHash, String fingerprint, String labelFingerprint ) {
+            this.tagHash = tagHash;
+            this.fingerprint = fingerprint;
+            this.labelFingerprint = labelFingerprint;
+        }
+    }
+
+    public State capture( GCEInstance gceInstance, Map<String,String> tags ) {
+        return new State(hashTags(tags), gceInstance.fingerprint, gceInstance.labelFingerprint);
+    }
+
+    public enum Decision { UNCHANGED, CHANGED, FORCED }
+
+    /**
+     * @param forcePushCycles push regardless of change once this many cycles were skipped, 0 or less disables the safety net
+     */
+    public synchronized Decision evaluate( State current, long forcePushCycles ) {
+        cyclesSinceLastPush++;
+        if( lastPushedTagHash == null ) return Decision.CHANGED;
+        if( forcePushCycles > 0 && cyclesSinceLastPush >= forcePushCycles ) return Decision.FORCED;
+        if( lastPushedTagHash.equals(current.tagHash)
+                && Objects.equals(lastPushedFingerprint, current.fingerprint)
+                && Objects.equals(lastPushedLabelFingerprint, current.labelFingerprint) )
+            return Decision.UNCHANGED;
+        return Decision.CHANGED;
+    }
+
+    public synchronized void markPushed( State pushed ) {
+        this.lastPushedTagHash = pushed.tagHash;
+        this.lastPushedFingerprint = pushed.fingerprint;
+        this.lastPushedLabelFingerprint = pushed.labelFingerprint;
+        this.cyclesSinceLastPush = 0;
+    }
+
+    public synchronized State getLastPushed() {
+        return lastPushedTagHash == null ? null : new State(lastPushedTagHash, lastPushedFingerprint, lastPushedLabelFingerprint);
+    }
+
+    public synchronized void reset() {
+        this.lastPushedTagHash = null;
+        this.lastPushedFingerprint = null;
+        this.lastPushedLabelFingerprint = null;
+        this.cyclesSinceLastPush = 0;
+    }
+
+    /**
+     * SHA-256 over the key/value pairs in key order, null values hash differently than empty strings
+     */
+    public static String hashTags( Map<String,String> tags ) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available in this JVM", e);
+        }
+        Map<String,String> sorted = tags instanceof TreeMap ? tags : new TreeMap<>(tags);
+        for( Map.Entry<String,String> entry : sorted.entrySet() ) {
+            digest.update(entry.getKey().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            if( entry.getValue() == null ) {
+                digest.update((byte) 1);
+            } else {
+                digest.update(entry.getValue().getBytes(StandardCharsets.UTF_8));
+            }
+            digest.update((byte) 0);
+        }
+        StringBuilder hex = new StringBuilder();
+        for( byte b : digest.digest() )
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+}
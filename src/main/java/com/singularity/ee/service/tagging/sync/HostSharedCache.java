@@ -0,0 +1,220 @@
+package com.singularity.ee.service.tagging.sync;
+
+import com.singularity.ee.agent.util.log4j.ADLoggerFactory;
+import com.singularity.ee.agent.util.log4j.IADLogger;
+import com.singularity.ee.service.tagging.exception.HttpStatusException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lets every JVM on the VM share one read of the metadata server and one Compute API response instead of each fetching
+ * the same instance. Each lives in its own slot of a small memory mapped file in the agent base conf dir, which all nodes
+ * of one install share. Two byte ranges per slot are used as locks: whoever holds the fetch lock is the one JVM calling out,
+ * and the data lock guards only the copy in or out of the mapping, so readers never wait on the network, only on a memcpy.
+ * A JVM that finds the entry stale while another one is fetching waits for that fetch, up to a limit, then fetches itself.
+ * Entries are keyed by host name, instance and field mask, a cache file carried over in a cloned image is never used.
+ * <pre>
+ * every SLOT_BYTES: int magic, int version, long writtenAtMillis, int keyLength, int bodyLength, key bytes, body bytes
+ * </pre>
+ */
+public class HostSharedCache {
+    private static final IADLogger logger = ADLoggerFactory.getLogger((String)"com.singularity.dynamicservice.tagging.HostSharedCache");
+    public static final String CACHE_FILE_NAME = "tagging-host-cache.bin";
+    private static final int MAGIC = 0x54414743; //TAGC
+    private static final int VERSION = 2; //2 split the file into slots
+    private static final int HEADER_BYTES = 24;
+    public static final int METADATA_SLOT = 0;
+    public static final int COMPUTE_SLOT = 1;
+    private static final int SLOTS = 2;
+    private static final int SLOT_BYTES = 512 * 1024;
+    private static final int FILE_BYTES = SLOTS * SLOT_BYTES;
+    private static final long FETCH_LOCK_POSITION = FILE_BYTES; //lock ranges past the data, locking them never touches it
+    private static final long DATA_LOCK_POSITION = FILE_BYTES + SLOTS;
+    private static final long POLL_MILLIS = 100;
+    //FileLocks are held by the JVM, not the thread, two tasks in one JVM sharing a file must take turns on this first
+    private static final Map<String, ReentrantLock> jvmLocks = new ConcurrentHashMap<>();
+
+    private final File cacheFile;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer mapping;
+    private final ReentrantLock jvmLock;
+    private final String hostName;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong fetchCount = new AtomicLong();
+    private final AtomicLong bypassCount = new AtomicLong();
+
+    public interface Fetcher {
+        byte[] fetch() throws IOException, HttpStatusException;
+    }
+
+    public HostSharedCache( String directory ) throws IOException {
+        this.cacheFile = new File(directory, CACHE_FILE_NAME);
+        open();
+        this.jvmLock = jvmLocks.computeIfAbsent(cacheFile.getCanonicalPath(), k -> new ReentrantLock());
+        this.hostName = getHostName();
+    }
+
+    /**
+     * @param slot METADATA_SLOT or COMPUTE_SLOT, each holds one entry
+     * @param key what the body is for, the instance and field mask; the host name is added here
+     * @param ttlMillis how old a cached body may be
+     * @param maxWaitMillis how long to wait on another JVM's fetch before fetching ourselves
+     * @return the cached body if fresh, otherwise the body fetched here or by another JVM while we waited
+     */
+    public byte[] getOrFetch( int slot, String key, long ttlMillis, long maxWaitMillis, Fetcher fetcher ) throws IOException, HttpStatusException {
+        byte[] keyBytes = (hostName +"|"+ key).getBytes(StandardCharsets.UTF_8);
+        long deadline = System.currentTimeMillis() + maxWaitMillis;
+        try {
+            if( !jvmLock.tryLock(maxWaitMillis, TimeUnit.MILLISECONDS) ) return bypass(fetcher);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the host tagging cache", e);
+        }
+        try {
+            //an interrupt during a lock call, a cycle past its deadline, closes the channel; open it again for the next cycle
+            if( !channel.isOpen() ) open();
+            while (true) {
+                byte[] body = readFresh(slot, keyBytes, ttlMillis);
+                if( body != null ) {
+                    hitCount.incrementAndGet();
+                    return body;
+                }
+                FileLock fetchLock = channel.tryLock(FETCH_LOCK_POSITION + slot, 1, false);
+                if( fetchLock != null ) {
+                    try {
+                        body = readFresh(slot, keyBytes, ttlMillis); //written by the last holder just before we got it
+                        if( body != null ) {
+                            hitCount.incrementAndGet();
+                            return body;
+                        }
+                        fetchCount.incrementAndGet();
+                        body = fetcher.fetch();
+                        write(slot, keyBytes, body);
+                        return body;
+                    } finally {
+                        release(fetchLock);
+                    }
+                }
+                if( System.currentTimeMillis() >= deadline ) return bypass(fetcher);
+                Thread.sleep(POLL_MILLIS);
+            }
+        } catch (OverlappingFileLockException e) {
+            logger.debug("Host tagging cache "+ cacheFile +" is locked elsewhere in this JVM: "+ e.toString());
+            return bypass(fetcher);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for another JVM to fetch into the host tagging cache", e);
+        } finally {
+            jvmLock.unlock();
+        }
+    }
+
+    public long getHitCount() { return hitCount.get(); }
+    public long getFetchCount() { return fetchCount.get(); }
+    public long getBypassCount() { return bypassCount.get(); }
+
+    public void close() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            logger.debug("Error closing the host tagging cache: "+ e.getMessage());
+        }
+    }
+
+    private void open() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(cacheFile, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            this.mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_BYTES);
+            this.channel = channel;
+            this.file = file;
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private void release( FileLock lock ) {
+        try {
+            lock.release();
+        } catch (IOException e) { //channel closed by an interrupt, the lock went with it
+            logger.debug("Host tagging cache lock was already released: "+ e.toString());
+        }
+    }
+
+    private byte[] bypass( Fetcher fetcher ) throws IOException, HttpStatusException {
+        bypassCount.incrementAndGet();
+        return fetcher.fetch();
+    }
+
+    private byte[] readFresh( int slot, byte[] keyBytes, long ttlMillis ) throws IOException {
+        try (FileLock ignored = channel.lock(DATA_LOCK_POSITION + slot, 1, true)) {
+            ByteBuffer buffer = slice(slot);
+            if( buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION ) return null;
+            long writtenAt = buffer.getLong(8);
+            int keyLength = buffer.getInt(16), bodyLength = buffer.getInt(20);
+            if( System.currentTimeMillis() - writtenAt >= ttlMillis || writtenAt > System.currentTimeMillis() ) return null;
+            if( keyLength != keyBytes.length || bodyLength < 0 || HEADER_BYTES + keyLength + bodyLength > SLOT_BYTES ) return null;
+            byte[] cachedKey = new byte[keyLength];
+            buffer.position(HEADER_BYTES);
+            buffer.get(cachedKey);
+            if( !Arrays.equals(cachedKey, keyBytes) ) return null;
+            byte[] body = new byte[bodyLength];
+            buffer.get(body);
+            return body;
+        }
+    }
+
+    private void write( int slot, byte[] keyBytes, byte[] body ) throws IOException {
+        if( HEADER_BYTES + keyBytes.length + body.length > SLOT_BYTES ) {
+            logger.debug("Response of "+ body.length +" bytes does not fit slot "+ slot +" of the host tagging cache, not sharing it");
+            return;
+        }
+        try (FileLock ignored = channel.lock(DATA_LOCK_POSITION + slot, 1, false)) {
+            ByteBuffer buffer = slice(slot);
+            buffer.putInt(0, 0); //readers without a lock, if there ever are any, see no entry while it is rewritten
+            buffer.position(HEADER_BYTES);
+            buffer.put(keyBytes);
+            buffer.put(body);
+            buffer.putInt(4, VERSION);
+            buffer.putLong(8, System.currentTimeMillis());
+            buffer.putInt(16, keyBytes.length);
+            buffer.putInt(20, body.length);
+            buffer.putInt(0, MAGIC);
+        }
+    }
+
+    /**
+     * The slot's bytes, indexed from 0 like a file of its own
+     */
+    private ByteBuffer slice( int slot ) {
+        ByteBuffer buffer = mapping.duplicate();
+        buffer.position(slot * SLOT_BYTES);
+        buffer.limit(slot * SLOT_BYTES + SLOT_BYTES);
+        return buffer.slice();
+    }
+
+    private static String getHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.singularity.ee.service.tagging.sync;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.singularity.ee.agent.util.log4j.ADLoggerFactory;
+import com.singularity.ee.agent.util.log4j.IADLogger;
+import com.singularity.ee.service.tagging.model.TaggingSnapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+
+/**
+ * Reads and writes the warm start snapshot in the agent runtime conf dir.
+ * Writes go to a temp file that is then moved over the real one, and a snapshot is only used on load if its version,
+ * checksum, host name and age all check out, anything else is treated as no snapshot at all.
+ */
+public class SnapshotStore {
+    private static final IADLogger logger = ADLoggerFactory.getLogger((String)"com.singularity.dynamicservice.tagging.SnapshotStore");
+    public static final String SNAPSHOT_FILE_NAME = "tagging-snapshot.json";
+    private static final long MAX_SNAPSHOT_AGE_MILLIS = 7 * 24 * 3600000L; //a week old snapshot is not trusted
+
+    private final File snapshotFile;
+    private final Gson gson;
+
+    public SnapshotStore( String directory, Gson gson ) {
+        this.snapshotFile = new File(directory, SNAPSHOT_FILE_NAME);
+        this.gson = gson;
+    }
+
+    public TaggingSnapshot load() {
+        if( !snapshotFile.exists() ) return null;
+        TaggingSnapshot snapshot;
+        try (Reader reader = Files.newBufferedReader(snapshotFile.toPath(), StandardCharsets.UTF_8)) {
+            snapshot = gson.fromJson(reader, TaggingSnapshot.class);
+        } catch (IOException | JsonParseException e) {
+            logger.warn("Ignoring unreadable tagging snapshot "+ snapshotFile.getAbsolutePath() +": "+ e.getMessage());
+            return null;
+        }
+        String problem = validate(snapshot);
+        if( problem != null ) {
+            logger.info("Ignoring tagging snapshot "+ snapshotFile.getAbsolutePath() +": "+ problem);
+            return null;
+        }
+        return snapshot;
+    }
+
+    public void save( TaggingSnapshot snapshot ) {
+        snapshot.version = TaggingSnapshot.CURRENT_VERSION;
+        snapshot.savedAt = System.currentTimeMillis();
+        snapshot.hostName = getHostName();
+        snapshot.checksum = checksum(snapshot);
+        File tempFile = new File(snapshotFile.getParentFile(), SNAPSHOT_FILE_NAME +".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(tempFile.toPath(), StandardCharsets.UTF_8)) {
+                gson.toJson(snapshot, writer);
+            }
+            try {
+                Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to write tagging snapshot "+ snapshotFile.getAbsolutePath() +": "+ e.getMessage());
+            tempFile.delete();
+        }
+    }
+
+    public void delete() {
+        if( snapshotFile.exists() && !snapshotFile.delete() )
+            logger.warn("Unable to delete tagging snapshot "+ snapshotFile.getAbsolutePath());
+    }
+
+    private String validate( TaggingSnapshot snapshot ) {
+        if( snapshot == null ) return "empty file";
+        if( snapshot.version != TaggingSnapshot.CURRENT_VERSION ) return "version "+ snapshot.version +" is not "+ TaggingSnapshot.CURRENT_VERSION;
+        if( snapshot.checksum == null || !snapshot.checksum.equals(checksum(snapshot)) ) return "checksum mismatch";
+        if( snapshot.projectId == null || snapshot.instanceName == null || snapshot.zone == null ) return "instance identity is incomplete";
+        if( snapshot.hostName == null || !snapshot.hostName.equals(getHostName()) ) return "written on host "+ snapshot.hostName;
+        if( System.currentTimeMillis() - snapshot.savedAt > MAX_SNAPSHOT_AGE_MILLIS ) return "too old";
+        return null;
+    }
+
+    private String checksum( TaggingSnapshot snapshot ) {
+        String checksum = snapshot.checksum;
+        snapshot.checksum = null;
+        try {
+            return ChangeDetector.hashTags(Collections.singletonMap("snapshot", gson.toJson(snapshot)));
+        } finally {
+            snapshot.checksum = checksum;
+        }
+    }
+
+    private static String getHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+}
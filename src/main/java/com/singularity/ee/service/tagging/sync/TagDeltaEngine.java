@@ -0,0 +1,92 @@
+package com.singularity.ee.service.tagging.sync;
+
+import com.singularity.ee.service.tagging.model.EntityType;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Tracks the tags the controller has acknowledged and the entities holding them, and computes what changed since then,
+ * so a cycle only sends the added or changed keys to entities that already hold the rest. An entity that is not
+ * acknowledged yet, a tier or machine whose tagging was just enabled, gets the full set instead.
+ */
+public class TagDeltaEngine {
+    private Map<String,String> acknowledgedTags; //null until the first push is acknowledged
+    private Set<String> acknowledgedEntities = new TreeSet<>(); //entityKey of every entity holding acknowledgedTags
+
+    public static class TagDelta {
+        public final Map<String,String> upserts;
+        public final Set<String> removals;
+        public final boolean full;
+
+        public TagDelta( Map<String,String> upserts, Set<String> removals, boolean full ) {
+            this.upserts = upserts;
+            this.removals = removals;
+            this.full = full;
+        }
+
+        public boolean isEmpty() {
+            return upserts.isEmpty() && removals.isEmpty();
+        }
+
+        public String toString() {
+            return String.format("TagDelta{full=%s upserts=%d removals=%s}", full, upserts.size(), removals);
+        }
+    }
+
+    /**
+     * @param fullPush send every current tag instead of only the changed ones, removals are still computed
+     */
+    public synchronized TagDelta compute( Map<String,String> currentTags, boolean fullPush ) {
+        if( acknowledgedTags == null )
+            return new TagDelta(new TreeMap<>(currentTags), Collections.<String>emptySet(), true);
+        Map<String,String> upserts = new TreeMap<>();
+        for( Map.Entry<String,String> entry : currentTags.entrySet() ) {
+            if( fullPush || !acknowledgedTags.containsKey(entry.getKey()) || !Objects.equals(acknowledgedTags.get(entry.getKey()), entry.getValue()) )
+                upserts.put(entry.getKey(), entry.getValue());
+        }
+        Set<String> removals = new TreeSet<>();
+        for( String key : acknowledgedTags.keySet() ) {
+            if( !currentTags.containsKey(key) )
+                removals.add(key);
+        }
+        return new TagDelta(upserts, removals, fullPush);
+    }
+
+    public static String entityKey( EntityType entityType, long entityId ) {
+        return entityType.name() +":"+ entityId;
+    }
+
+    public synchronized boolean isAcknowledged( String entityKey ) {
+        return acknowledgedTags != null && acknowledgedEntities.contains(entityKey);
+    }
+
+    /**
+     * The controller holds currentTags on exactly these entities, entities left out are no longer tagged by us
+     */
+    public synchronized void acknowledge( Map<String,String> currentTags, Collection<String> entityKeys ) {
+        acknowledgedTags = new TreeMap<>(currentTags);
+        acknowledgedEntities = new TreeSet<>(entityKeys);
+    }
+
+    public synchronized Map<String,String> getAcknowledgedTags() {
+        return acknowledgedTags == null ? null : Collections.unmodifiableMap(new TreeMap<>(acknowledgedTags));
+    }
+
+    public synchronized void setAcknowledgedTags( Map<String,String> tags ) {
+        this.acknowledgedTags = tags == null ? null : new TreeMap<>(tags);
+    }
+
+    public synchronized Set<String> getAcknowledgedEntities() {
+        return Collections.unmodifiableSet(new TreeSet<>(acknowledgedEntities));
+    }
+
+    public synchronized void setAcknowledgedEntities( Collection<String> entityKeys ) {
+        this.acknowledgedEntities = entityKeys == null ? new TreeSet<>() : new TreeSet<>(entityKeys);
+    }
+}
@@ -0,0 +1,171 @@
+package com.singularity.ee.service.tagging.sync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Bounds what one node sends to the controller: tags are filtered by allow and deny patterns, values longer than the limit
+ * are cut, and past the count limit the tags ranked lowest are dropped. The rank of a tag is the first priority pattern it
+ * matches, tags matching none come last, and ties go by key, so the same input always keeps the same tags.
+ * Patterns are comma separated globs over the tag key where * stays within one | separated part and ** crosses them,
+ * e.g. GCP|* is the instance fields and GCP|Label|** every label. They are compiled once, when the node properties change.
+ * Every limit is opt in, with no patterns and both limits UNLIMITED, the defaults, tags pass through untouched.
+ */
+public class TagGovernor {
+    public static final int UNLIMITED = 0;
+
+    private final int maxCount;
+    private final int maxValueLength;
+    private final KeyMatcher allow;
+    private final KeyMatcher deny;
+    private final KeyMatcher priority;
+
+    public static class Result {
+        public final Map<String,String> tags;
+        public final int denied;
+        public final int overLimit;
+        public final int truncated;
+
+        Result( Map<String,String> tags, int denied, int overLimit, int truncated ) {
+            this.tags = tags;
+            this.denied = denied;
+            this.overLimit = overLimit;
+            this.truncated = truncated;
+        }
+    }
+
+    /**
+     * @param maxCount most tags kept, UNLIMITED for no limit
+     * @param maxValueLength longest value kept, longer ones are cut to this; UNLIMITED for no limit
+     * @param allowPatterns only keys matching one of these are kept, null or empty allows every key
+     * @param denyPatterns keys matching one of these are dropped, even if allowed
+     * @param priorityPatterns order in which tags are kept when there are more than maxCount
+     */
+    public TagGovernor( int maxCount, int maxValueLength, String allowPatterns, String denyPatterns, String priorityPatterns ) {
+        this.maxCount = Math.max(UNLIMITED, maxCount);
+        this.maxValueLength = Math.max(UNLIMITED, maxValueLength);
+        this.allow = KeyMatcher.compile(allowPatterns);
+        this.deny = KeyMatcher.compile(denyPatterns);
+        this.priority = KeyMatcher.compile(priorityPatterns);
+    }
+
+    public Result apply( Map<String,String> tags ) {
+        if( isPassThrough() ) return new Result(tags, 0, 0, 0);
+        int denied = 0, overLimit = 0, truncated = 0;
+        List<Map.Entry<String,String>> kept = new ArrayList<>(tags.size());
+        for( Map.Entry<String,String> tag : tags.entrySet() ) {
+            if( (!allow.isEmpty() && allow.indexOf(tag.getKey()) < 0) || deny.indexOf(tag.getKey()) >= 0 ) {
+                denied++;
+                continue;
+            }
+            kept.add(tag);
+        }
+        if( maxCount != UNLIMITED && kept.size() > maxCount ) {
+            Map<String,Integer> ranks = new HashMap<>();
+            for( Map.Entry<String,String> tag : kept ) {
+                int rank = priority.indexOf(tag.getKey());
+                ranks.put(tag.getKey(), rank < 0 ? Integer.MAX_VALUE : rank);
+            }
+            kept.sort((a, b) -> {
+                int byRank = Integer.compare(ranks.get(a.getKey()), ranks.get(b.getKey()));
+                return byRank != 0 ? byRank : a.getKey().compareTo(b.getKey());
+            });
+            overLimit = kept.size() - maxCount;
+            kept = kept.subList(0, maxCount);
+        }
+        Map<String,String> governed = new TreeMap<>();
+        for( Map.Entry<String,String> tag : kept ) {
+            String value = tag.getValue();
+            if( maxValueLength != UNLIMITED && value != null && value.length() > maxValueLength ) {
+                value = value.substring(0, maxValueLength);
+                truncated++;
+            }
+            governed.put(tag.getKey(), value);
+        }
+        return new Result(governed, denied, overLimit, truncated);
+    }
+
+    public boolean isPassThrough() {
+        return maxCount == UNLIMITED && maxValueLength == UNLIMITED && allow.isEmpty() && deny.isEmpty();
+    }
+
+    /**
+     * An ordered list of key globs. Plain keys are compared as strings, a literal followed by ** as a prefix,
+     * only the rest become regular expressions
+     */
+    static class KeyMatcher {
+        private static final KeyMatcher EMPTY = new KeyMatcher(Collections.<Object>emptyList());
+        private final List<Object> patterns; //String exact, Prefix or Pattern, in the order given
+
+        private static class Prefix {
+            final String prefix;
+
+            Prefix( String prefix ) {
+                this.prefix = prefix;
+            }
+        }
+
+        private KeyMatcher( List<Object> patterns ) {
+            this.patterns = patterns;
+        }
+
+        static KeyMatcher compile( String globs ) {
+            if( globs == null || globs.trim().isEmpty() ) return EMPTY;
+            List<Object> patterns = new ArrayList<>();
+            for( String glob : globs.split(",") ) {
+                glob = glob.trim();
+                if( glob.isEmpty() ) continue;
+                int star = glob.indexOf('*');
+                if( star < 0 ) {
+                    patterns.add(glob);
+                } else if( star == glob.length() - 2 && glob.endsWith("**") ) {
+                    patterns.add(new Prefix(glob.substring(0, star)));
+                } else {
+                    patterns.add(toRegex(glob));
+                }
+            }
+            return new KeyMatcher(patterns);
+        }
+
+        private static Pattern toRegex( String glob ) {
+            StringBuilder regex = new StringBuilder();
+            int literalStart = 0;
+            for( int i = 0; i < glob.length(); i++ ) {
+                if( glob.charAt(i) != '*' ) continue;
+                if( i > literalStart ) regex.append(Pattern.quote(glob.substring(literalStart, i)));
+                if( i + 1 < glob.length() && glob.charAt(i + 1) == '*' ) {
+                    regex.append(".*");
+                    i++;
+                } else {
+                    regex.append("[^|]*");
+                }
+                literalStart = i + 1;
+            }
+            if( literalStart < glob.length() ) regex.append(Pattern.quote(glob.substring(literalStart)));
+            return Pattern.compile(regex.toString());
+        }
+
+        boolean isEmpty() {
+            return patterns.isEmpty();
+        }
+
+        /**
+         * @return position of the first pattern the key matches, -1 if none
+         */
+        int indexOf( String key ) {
+            for( int i = 0; i < patterns.size(); i++ ) {
+                Object pattern = patterns.get(i);
+                if( pattern instanceof String ? pattern.equals(key)
+                        : pattern instanceof Prefix ? key.startsWith(((Prefix) pattern).prefix)
+                        : ((Pattern) pattern).matcher(key).matches() )
+                    return i;
+            }
+            return -1;
+        }
+    }
+}
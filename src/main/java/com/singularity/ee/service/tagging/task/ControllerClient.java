@@ -0,0 +1,171 @@
+package com.singularity.ee.service.tagging.task;
+
+import com.singularity.ee.agent.util.log4j.ADLoggerFactory;
+import com.singularity.ee.agent.util.log4j.IADLogger;
+import com.singularity.ee.service.tagging.AgentNodeProperties;
+import com.singularity.ee.service.tagging.auth.ControllerTokenProvider;
+import com.singularity.ee.service.tagging.exception.CommunicationErrorException;
+import com.singularity.ee.service.tagging.exception.HttpStatusException;
+import com.singularity.ee.service.tagging.http.CircuitBreaker;
+import com.singularity.ee.service.tagging.http.CompressingHttpTransport;
+import com.singularity.ee.service.tagging.http.HttpCall;
+import com.singularity.ee.service.tagging.http.HttpResult;
+import com.singularity.ee.service.tagging.http.RetryPolicy;
+import com.singularity.ee.service.tagging.http.TokenBucket;
+import com.singularity.ee.service.tagging.model.BatchResponse;
+import com.singularity.ee.service.tagging.model.BatchTaggingRequest;
+import com.singularity.ee.service.tagging.model.EntityType;
+import com.singularity.ee.service.tagging.model.TaggingJsonCodec;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Everything that talks to the controller REST API: the bearer token, the rate limiter, retries through the controller
+ * circuit breaker and gzip of request bodies. The in-agent task and the fleet tagger share it, and it is safe to call
+ * from several threads at once, so the fleet tagger can keep more than one batch in flight.
+ */
+public class ControllerClient {
+    private static final IADLogger logger = ADLoggerFactory.getLogger((String)"com.singularity.dynamicservice.tagging.ControllerClient");
+    private static final long RATE_LIMIT_MAX_WAIT_MILLIS = 30000;
+
+    private final String controllerUrl;
+    private final ControllerTokenProvider controllerTokenProvider;
+    private final CompressingHttpTransport httpTransport;
+    private final AgentNodeProperties agentNodeProperties;
+    private final RetryPolicy retryPolicy;
+    private final CircuitBreaker circuitBreaker;
+    private final TokenBucket rateLimiter;
+    private final SyncCycleMetrics syncCycleMetrics;
+    private final TaggingJsonCodec jsonCodec = new TaggingJsonCodec();
+
+    public ControllerClient( String controllerUrl, ControllerTokenProvider controllerTokenProvider, CompressingHttpTransport httpTransport,
+                             AgentNodeProperties agentNodeProperties, RetryPolicy retryPolicy, CircuitBreaker circuitBreaker,
+                             TokenBucket rateLimiter, SyncCycleMetrics syncCycleMetrics ) {
+        this.controllerUrl = controllerUrl;
+        this.controllerTokenProvider = controllerTokenProvider;
+        this.httpTransport = httpTransport;
+        this.agentNodeProperties = agentNodeProperties;
+        this.retryPolicy = retryPolicy;
+        this.circuitBreaker = circuitBreaker;
+        this.rateLimiter = rateLimiter;
+        this.syncCycleMetrics = syncCycleMetrics;
+    }
+
+    /**
+     * Fits BatchUploader.Transport
+     */
+    public BatchResponse uploadTags( BatchTaggingRequest batchTaggingRequest ) throws CommunicationErrorException {
+        byte[] jsonBytes;
+        try {
+            jsonBytes = jsonCodec.toJsonBytes(batchTaggingRequest);
+        } catch (IOException e) {
+            throw new CommunicationErrorException("Unable to serialize tagging request: "+ e.getMessage(), e);
+        }
+
+        syncCycleMetrics.recordPayload(jsonBytes.length);
+        HttpResult response = send("POST", "/controller/restui/tags/tagEntitiesInBatch", jsonBytes);
+        if (response.statusCode != HttpURLConnection.HTTP_OK) {
+            throw new CommunicationErrorException("Error updating tags for entity, Response Code: "+ response.statusCode);
+        }
+        return parseBatchResponse(response);
+    }
+
+    /**
+     * Deletes one tag key from one entity, a key the controller no longer has counts as removed
+     */
+    public void removeTag( EntityType entityType, long entityId, String key ) throws CommunicationErrorException {
+        String path;
+        try {
+            path = String.format("/controller/restui/tags?entityType=%s&entityId=%d&key=%s", entityType.convertToAPIEntityType(), entityId,
+                    URLEncoder.encode(key, StandardCharsets.UTF_8.toString()));
+        } catch (UnsupportedEncodingException e) {
+            throw new CommunicationErrorException("Unable to encode tag key '"+ key +"': "+ e.getMessage());
+        }
+        int responseCode = send("DELETE", path, null).statusCode;
+        if (responseCode != HttpURLConnection.HTTP_OK && responseCode != HttpURLConnection.HTTP_NO_CONTENT && responseCode != HttpURLConnection.HTTP_NOT_FOUND) {
+            throw new CommunicationErrorException("Error removing tag '"+ key +"' from "+ entityType +" entity "+ entityId +", Response Code: "+ responseCode);
+        }
+    }
+
+    /**
+     * GET a controller REST path, e.g. /controller/rest/applications?output=JSON
+     */
+    public HttpResult get( String path ) throws CommunicationErrorException {
+        HttpResult response = send("GET", path, null);
+        if (response.statusCode != HttpURLConnection.HTTP_OK) {
+            throw new CommunicationErrorException("Error calling controller GET "+ path +", Response Code: "+ response.statusCode);
+        }
+        return response;
+    }
+
+    /**
+     * The controller answers with one BatchResponse, or an array of them, fold whatever came back into one list of failures
+     */
+    private BatchResponse parseBatchResponse( HttpResult response ) {
+        if( response.body.length == 0 ) return null;
+        try (Reader reader = response.getBodyReader()) {
+            return TaggingJsonCodec.readBatchResponse(reader);
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            logger.debug("Unable to parse tagEntitiesInBatch response, assuming success: "+ e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Send a request with the cached controller token, if the controller rejects the token get a fresh one and try once more.
+     * Overload and server errors are retried with backoff through the controller circuit breaker.
+     */
+    private HttpResult send( String method, String path, byte[] jsonBytes ) throws CommunicationErrorException {
+        return retryPolicy.execute(circuitBreaker, () -> {
+            String token = getToken();
+            HttpResult response = send(method, path, jsonBytes, token);
+            if (response.statusCode == HttpURLConnection.HTTP_UNAUTHORIZED) {
+                logger.debug("Controller rejected the cached bearer token, requesting a new one and retrying");
+                controllerTokenProvider.invalidate(token);
+                response = send(method, path, jsonBytes, getToken());
+            }
+            if (RetryPolicy.isRetryableStatus(response.statusCode))
+                throw new HttpStatusException("Controller Response in Error for "+ method +" "+ path +": "+ response.statusCode, response.statusCode,
+                        RetryPolicy.parseRetryAfter(response.getHeader("Retry-After")));
+            return response;
+        });
+    }
+
+    private String getToken() throws CommunicationErrorException {
+        long tokenStart = System.nanoTime();
+        try {
+            return controllerTokenProvider.getToken();
+        } finally {
+            syncCycleMetrics.recordPhase(SyncCycleMetrics.Phase.CONTROLLER_TOKEN, System.nanoTime() - tokenStart);
+        }
+    }
+
+    private HttpResult send( String method, String path, byte[] jsonBytes, String token ) throws CommunicationErrorException {
+        AgentNodeProperties.Snapshot nodeProperties = agentNodeProperties.snapshot(); //rate and burst, gzip and its threshold from the same update
+        rateLimiter.configure(nodeProperties.controllerRequestsPerMinute, nodeProperties.controllerBurst);
+        try {
+            if (!rateLimiter.acquire(RATE_LIMIT_MAX_WAIT_MILLIS))
+                throw new CommunicationErrorException("Controller request rate limit of "+ nodeProperties.controllerRequestsPerMinute +" per minute reached, not sending "+ method +" "+ path);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CommunicationErrorException("Interrupted waiting for the controller rate limiter", e);
+        }
+        HttpCall call = new HttpCall(HttpCall.CONTROLLER_ENDPOINT, method, controllerUrl + path)
+                .header("Authorization", "Bearer " + token)
+                .acceptGzip();
+        if (jsonBytes != null) {
+            call.body(jsonBytes, "application/json; charset=utf-8");
+            if (nodeProperties.gzipEnabled) call.gzipRequestBody(nodeProperties.gzipMinBytes);
+        }
+        try {
+            return httpTransport.execute(call);
+        } catch (IOException e) {
+            throw new CommunicationErrorException("Error calling controller "+ method +" "+ path +": "+ e.getMessage(), e);
+        }
+    }
+}
@@ -1,51 +1,78 @@
 package com.singularity.ee.service.tagging.task;
 
-import com.google.auth.oauth2.GoogleCredentials;
-import com.google.auth.oauth2.ServiceAccountCredentials;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
 import com.singularity.ee.agent.appagent.kernel.ServiceComponent;
+import com.singularity.ee.agent.appagent.kernel.spi.IConfigurationChannel;
 import com.singularity.ee.agent.appagent.kernel.spi.IDynamicService;
 import com.singularity.ee.agent.appagent.kernel.spi.IServiceContext;
 import com.singularity.ee.agent.util.log4j.ADLoggerFactory;
 import com.singularity.ee.agent.util.log4j.IADLogger;
 import com.singularity.ee.service.tagging.AgentNodeProperties;
 import com.singularity.ee.service.tagging.MetaData;
+import com.singularity.ee.service.tagging.auth.ControllerTokenProvider;
+import com.singularity.ee.service.tagging.auth.GCPTokenProvider;
 import com.singularity.ee.service.tagging.exception.CommunicationErrorException;
+import com.singularity.ee.service.tagging.gcp.GCEInstanceParser;
+import com.singularity.ee.service.tagging.gcp.MetadataProbe;
+import com.singularity.ee.service.tagging.gcp.MetadataServer;
+import com.singularity.ee.service.tagging.gcp.TieredInstanceFetcher;
+import com.singularity.ee.service.tagging.http.CircuitBreaker;
+import com.singularity.ee.service.tagging.http.CompressingHttpTransport;
+import com.singularity.ee.service.tagging.http.CompressionStats;
+import com.singularity.ee.service.tagging.http.HttpCall;
+import com.singularity.ee.service.tagging.http.HttpResult;
+import com.singularity.ee.service.tagging.http.HttpTransport;
+import com.singularity.ee.service.tagging.http.PooledHttpTransport;
+import com.singularity.ee.service.tagging.http.RetryPolicy;
+import com.singularity.ee.service.tagging.http.TokenBucket;
 import com.singularity.ee.service.tagging.exception.ConfigurationException;
+import com.singularity.ee.service.tagging.exception.HttpStatusException;
 import com.singularity.ee.service.tagging.exception.NotRunningOnException;
-import com.singularity.ee.service.tagging.model.AccessToken;
 import com.singularity.ee.service.tagging.model.BatchTaggingRequest;
+import com.singularity.ee.service.tagging.model.Entity;
+import com.singularity.ee.service.tagging.model.EntityType;
 import com.singularity.ee.service.tagging.model.GCEInstance;
+import com.singularity.ee.service.tagging.model.Tag;
+import com.singularity.ee.service.tagging.model.TaggingSnapshot;
+import com.singularity.ee.service.tagging.sync.BatchUploader;
+import com.singularity.ee.service.tagging.sync.ChangeDetector;
+import com.singularity.ee.service.tagging.sync.HostSharedCache;
+import com.singularity.ee.service.tagging.sync.SnapshotStore;
+import com.singularity.ee.service.tagging.sync.TagDeltaEngine;
+import com.singularity.ee.service.tagging.sync.TagGovernor;
 import com.singularity.ee.util.javaspecific.threads.IAgentRunnable;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.ProtocolException;
-import java.net.URL;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
 public class GCPTaggingTask implements IAgentRunnable {
     private static final IADLogger logger = ADLoggerFactory.getLogger((String)"com.singularity.dynamicservice.tagging.GCPTaggingTask");
     private static String GCP_SERVICE_ACCOUNT_KEY_FILE_PROPERTY = "gcp-service-account-key-file";
+    private static String GCP_CREDENTIALS_PROPERTY = "gcp-credentials";
+    private static final String CREDENTIALS_METADATA_SERVER = "metadata-server";
+    private static final String CREDENTIALS_KEY_FILE = "key-file";
     private static String CONTROLLER_URL_PROPERTY = "controller-url";
     private static String CONTROLLER_APICLIENT_PROPERTY = "controller-api-client";
     private static String CONTROLLER_APISECRET_PROPERTY = "controller-api-secret";
+    private static String GCP_INSTANCE_TAG_FIELDS_PROPERTY = "gcp-instance-tag-fields";
+    private static String GCP_METADATA_URL_PROPERTY = "gcp-metadata-url";
+    private static String GCP_COMPUTE_URL_PROPERTY = "gcp-compute-url";
+    private static final String DEFAULT_COMPUTE_URL = "https://compute.googleapis.com/compute/v1/";
+    private static final long HOST_CACHE_MAX_WAIT_MILLIS = 20000;
     private IDynamicService agentService;
     private AgentNodeProperties agentNodeProperties;
     private ServiceComponent serviceComponent;
@@ -54,30 +81,114 @@ public class GCPTaggingTask implements IAgentRunnable {
     private String projectId;
     private String instanceName;
     private String zone;
-    private GoogleCredentials credentials;
-    private long lastSyncTimestamp = 0;
+    private ControllerClient controllerClient;
+    private GCPTokenProvider gcpTokenProvider;
+    private final CompressingHttpTransport httpTransport;
+    private final ChangeDetector changeDetector = new ChangeDetector();
+    private final TagDeltaEngine tagDeltaEngine = new TagDeltaEngine();
+    private TagGovernor tagGovernor;
+    private AgentNodeProperties.Snapshot tagGovernorProperties; //the node properties tagGovernor was compiled from
+    private SnapshotStore snapshotStore;
+    private HostSharedCache hostSharedCache;
+    private MetadataServer metadataServer;
+    private GCEInstanceParser gceInstanceParser;
+    private TieredInstanceFetcher tieredInstanceFetcher;
+    private final RetryPolicy retryPolicy = new RetryPolicy(3, 500, 10000);
+    private final CircuitBreaker metadataCircuitBreaker = new CircuitBreaker("metadata", 5, 5 * 60000);
+    private final CircuitBreaker computeCircuitBreaker = new CircuitBreaker("compute", 5, 5 * 60000);
+    private final CircuitBreaker controllerCircuitBreaker = new CircuitBreaker("controller", 5, 5 * 60000);
+    private TokenBucket controllerRateLimiter;
+    private final SyncCycleMetrics syncCycleMetrics = new SyncCycleMetrics();
+    private boolean lastCycleSynced = false;
+    private long gatedCycles = 0;
     private Properties properties;
+    private String computeUrl;
 
     public GCPTaggingTask (IDynamicService agentService, AgentNodeProperties agentNodeProperties, ServiceComponent serviceComponent, IServiceContext iServiceContext) throws ConfigurationException, NotRunningOnException {
+        this(agentService, agentNodeProperties, serviceComponent, iServiceContext, new PooledHttpTransport());
+    }
+
+    public GCPTaggingTask (IDynamicService agentService, AgentNodeProperties agentNodeProperties, ServiceComponent serviceComponent, IServiceContext iServiceContext, HttpTransport httpTransport) throws ConfigurationException, NotRunningOnException {
+        this.httpTransport=new CompressingHttpTransport(httpTransport, agentNodeProperties.getGzipMinBytes());
+        try {
+            initialize(agentService, agentNodeProperties, serviceComponent, iServiceContext);
+        } catch (ConfigurationException | NotRunningOnException | RuntimeException e) {
+            this.httpTransport.close();
+            if( hostSharedCache != null ) hostSharedCache.close();
+            throw e;
+        }
+    }
+
+    private void initialize (IDynamicService agentService, AgentNodeProperties agentNodeProperties, ServiceComponent serviceComponent, IServiceContext iServiceContext) throws ConfigurationException, NotRunningOnException {
         this.agentNodeProperties=agentNodeProperties;
         this.agentService=agentService;
         this.serviceComponent=serviceComponent;
         this.serviceContext=iServiceContext;
         this.gson = new GsonBuilder().setPrettyPrinting().create();
-        this.properties = initLocalProperties(serviceContext, CONTROLLER_URL_PROPERTY, CONTROLLER_APICLIENT_PROPERTY, CONTROLLER_APISECRET_PROPERTY, GCP_SERVICE_ACCOUNT_KEY_FILE_PROPERTY);
-        // Fetch metadata
+        this.properties = initLocalProperties(serviceContext, CONTROLLER_URL_PROPERTY, CONTROLLER_APICLIENT_PROPERTY, CONTROLLER_APISECRET_PROPERTY);
+        try {
+            String tagFields = properties.getProperty(GCP_INSTANCE_TAG_FIELDS_PROPERTY);
+            this.gceInstanceParser = new GCEInstanceParser(tagFields == null ? GCEInstance.DEFAULT_TAG_FIELDS : tagFields.trim().split("\\s*,\\s*"));
+        } catch (IllegalArgumentException e) {
+            throw new ConfigurationException("Error in property "+ GCP_INSTANCE_TAG_FIELDS_PROPERTY +": "+ e.getMessage());
+        }
+        this.tieredInstanceFetcher = new TieredInstanceFetcher(gceInstanceParser);
+        this.controllerRateLimiter = new TokenBucket(agentNodeProperties.getControllerRequestsPerMinute(), agentNodeProperties.getControllerBurst());
+        ControllerTokenProvider controllerTokenProvider = new ControllerTokenProvider(properties.getProperty(CONTROLLER_URL_PROPERTY),
+                properties.getProperty(CONTROLLER_APICLIENT_PROPERTY), properties.getProperty(CONTROLLER_APISECRET_PROPERTY), httpTransport);
+        this.controllerClient = new ControllerClient(properties.getProperty(CONTROLLER_URL_PROPERTY), controllerTokenProvider, httpTransport,
+                agentNodeProperties, retryPolicy, controllerCircuitBreaker, controllerRateLimiter, syncCycleMetrics);
+        String metadataUrl = properties.getProperty(GCP_METADATA_URL_PROPERTY, MetadataServer.METADATA_ROOT_URL);
+        this.metadataServer = new MetadataServer(gson, httpTransport, metadataUrl);
+        this.computeUrl = properties.getProperty(GCP_COMPUTE_URL_PROPERTY, DEFAULT_COMPUTE_URL);
+        if( !computeUrl.endsWith("/") ) computeUrl += "/";
+        this.snapshotStore = new SnapshotStore(serviceContext.getRuntimeConfDir(), gson);
         try {
-            projectId = fetchMetadata("http://metadata.google.internal/computeMetadata/v1/project/project-id");
-            instanceName = fetchMetadata("http://metadata.google.internal/computeMetadata/v1/instance/name");
-            String zonePath = fetchMetadata("http://metadata.google.internal/computeMetadata/v1/instance/zone");
-            zone = zonePath.substring(zonePath.lastIndexOf('/') + 1);
+            this.hostSharedCache = new HostSharedCache(serviceContext.getBaseConfDir()); //base conf is shared by every node of this agent install
         } catch (IOException e) {
-            throw new NotRunningOnException();
+            logger.warn("Unable to open the host tagging cache in "+ serviceContext.getBaseConfDir() +", every JVM will fetch for itself: "+ e.getMessage());
         }
+        TaggingSnapshot snapshot = snapshotStore.load();
+        if( snapshot != null ) {
+            logger.info(String.format("Warm start from tagging snapshot for instance %s in project %s zone %s", snapshot.instanceName, snapshot.projectId, snapshot.zone));
+            projectId = snapshot.projectId;
+            instanceName = snapshot.instanceName;
+            zone = snapshot.zone;
+            if( snapshot.tagHash != null )
+                changeDetector.markPushed(new ChangeDetector.State(snapshot.tagHash, snapshot.instanceFingerprint, snapshot.labelFingerprint));
+            tagDeltaEngine.setAcknowledgedTags(snapshot.acknowledgedTags);
+            tagDeltaEngine.setAcknowledgedEntities(snapshot.acknowledgedEntities);
+        } else {
+            // Make sure there is a metadata server before waiting on one, then fetch metadata, one recursive read of the whole tree
+            if( !MetadataProbe.isOnGCP(metadataUrl) ) throw new NotRunningOnException();
+            try {
+                refreshMetadata();
+                updateIdentityFromMetadata();
+            } catch (IOException | HttpStatusException e) {
+                throw new NotRunningOnException();
+            }
+            if( projectId == null || instanceName == null || zone == null ) throw new NotRunningOnException();
+        }
+        this.gcpTokenProvider = initGcpTokenProvider(metadataUrl);
+    }
+
+    /**
+     * gcp-credentials=metadata-server uses the service account attached to the VM, key-file the key named by gcp-service-account-key-file.
+     * Without gcp-credentials it is key-file when a key file is configured, so existing installs keep working, and metadata-server otherwise.
+     */
+    private GCPTokenProvider initGcpTokenProvider (String metadataUrl) throws ConfigurationException {
         String keyFileName = properties.getProperty(GCP_SERVICE_ACCOUNT_KEY_FILE_PROPERTY);
+        String mode = properties.getProperty(GCP_CREDENTIALS_PROPERTY, keyFileName == null ? CREDENTIALS_METADATA_SERVER : CREDENTIALS_KEY_FILE).trim();
+        if( CREDENTIALS_METADATA_SERVER.equals(mode) ) {
+            logger.info("Using the VM service account from the metadata server for GCP credentials");
+            return GCPTokenProvider.fromMetadataServer(httpTransport, metadataUrl);
+        }
+        if( !CREDENTIALS_KEY_FILE.equals(mode) )
+            throw new ConfigurationException(String.format("Error in property %s: '%s', expected %s or %s", GCP_CREDENTIALS_PROPERTY, mode, CREDENTIALS_METADATA_SERVER, CREDENTIALS_KEY_FILE));
+        if( keyFileName == null )
+            throw new ConfigurationException(String.format("Missing required property: '%s' for %s=%s", GCP_SERVICE_ACCOUNT_KEY_FILE_PROPERTY, GCP_CREDENTIALS_PROPERTY, CREDENTIALS_KEY_FILE));
         try {
-            credentials = ServiceAccountCredentials.fromStream(new FileInputStream(keyFileName))
-                    .createScoped(Collections.singletonList("https://www.googleapis.com/auth/cloud-platform"));
+            return GCPTokenProvider.fromServiceAccountKeyFile(keyFileName); //first use of google-auth, only once we know we are on GCP
         } catch (Exception e) {
             throw new ConfigurationException("Error initializing credentials from file: "+ keyFileName +" Exception: "+ e.getMessage());
         }
@@ -140,150 +251,320 @@ public class GCPTaggingTask implements IAgentRunnable {
             logger.info("Service " + agentService.getName() + " is not enabled. To enable it enable the node property "+ AgentNodeProperties.ENABLED_PROPERTY);
             return;
         }
-        if( System.currentTimeMillis() < this.lastSyncTimestamp + (agentNodeProperties.getSyncFrequencyMinutes()*60000) )
-            return; //only run this every 15 minutes, ish
+        long cycleStart = System.nanoTime();
+        SyncCycleMetrics.Outcome outcome = SyncCycleMetrics.Outcome.FAILED;
+        try {
+            outcome = syncCycle();
+        } finally {
+            syncCycleMetrics.recordPhase(SyncCycleMetrics.Phase.CYCLE, System.nanoTime() - cycleStart);
+            syncCycleMetrics.recordOutcome(outcome);
+        }
+    }
+
+    private SyncCycleMetrics.Outcome syncCycle() {
+        boolean metadataChanged = true;
+        long phaseStart = System.nanoTime();
+        try {
+            metadataChanged = retryPolicy.execute(metadataCircuitBreaker, this::refreshMetadata);
+            if( metadataChanged ) updateIdentityFromMetadata();
+        } catch (CommunicationErrorException e) {
+            logger.warn("Error checking the GCP metadata server for changes: "+ e.getMessage());
+        } finally {
+            syncCycleMetrics.recordPhase(SyncCycleMetrics.Phase.METADATA, System.nanoTime() - phaseStart);
+        }
+        if( !metadataChanged && lastCycleSynced && gatedCycles < agentNodeProperties.getMetadataGateMaxSkippedCycles() ) {
+            gatedCycles++;
+            logger.debug("GCP metadata is unchanged, skipping the Compute API fetch this cycle");
+            return SyncCycleMetrics.Outcome.METADATA_UNCHANGED;
+        }
+        gatedCycles = 0;
+        lastCycleSynced = false;
 
         GCEInstance gceInstance = null;
+        phaseStart = System.nanoTime();
         try {
-            gceInstance = fetchInstanceData();
-        } catch (IOException e) {
-            logger.error("Error fetching GCP Instance Data");
+            gceInstance = retryPolicy.execute(computeCircuitBreaker, this::fetchInstanceData);
+        } catch (HttpStatusException e) {
+            if( e.getStatusCode() == HttpURLConnection.HTTP_NOT_FOUND ) {
+                logger.error(String.format("GCP Instance %s was not found in project %s zone %s, discarding any saved tagging snapshot", instanceName, projectId, zone));
+                snapshotStore.delete();
+                tieredInstanceFetcher.invalidateStatic();
+            } else {
+                logger.error("Error fetching GCP Instance Data: "+ e.getMessage());
+            }
+        } catch (CommunicationErrorException e) {
+            logger.error("Error fetching GCP Instance Data: "+ e.getMessage());
+        } finally {
+            syncCycleMetrics.recordPhase(SyncCycleMetrics.Phase.COMPUTE_FETCH, System.nanoTime() - phaseStart);
         }
 
-        if( gceInstance == null ) return; //give up
+        if( gceInstance == null ) return SyncCycleMetrics.Outcome.FAILED; //give up
+
+        Map<String,String> tags = BatchTaggingRequest.buildTagMap(gceInstance, gceInstanceParser.getTagFields());
+        tags.putAll(metadataServer.getMetadataTags());
+        TagGovernor.Result governed = getTagGovernor().apply(tags);
+        syncCycleMetrics.recordGoverned(governed.denied, governed.overLimit, governed.truncated);
+        if( governed.denied + governed.overLimit > 0 )
+            logger.debug(String.format("Tag governor dropped %d denied and %d over limit tags of %d", governed.denied, governed.overLimit, tags.size()));
+        tags = governed.tags;
+        ChangeDetector.State currentState = changeDetector.capture(gceInstance, tags);
+        ChangeDetector.Decision decision = changeDetector.evaluate(currentState, agentNodeProperties.getForcePushCycles());
+        Map<EntityType, List<Entity>> entities = buildEntities(serviceComponent.getConfigManager().getIConfigChannel());
+        List<String> entityKeys = new ArrayList<>();
+        boolean newEntities = false;
+        for( Map.Entry<EntityType, List<Entity>> entry : entities.entrySet() ) {
+            for( Entity entity : entry.getValue() ) {
+                String entityKey = TagDeltaEngine.entityKey(entry.getKey(), entity.entityId);
+                entityKeys.add(entityKey);
+                newEntities |= !tagDeltaEngine.isAcknowledged(entityKey);
+            }
+        }
+        if( decision == ChangeDetector.Decision.UNCHANGED && !newEntities ) {
+            logger.debug("GCP tags are unchanged since the last upload, skipping controller update");
+            lastCycleSynced = true;
+            syncCycleMetrics.recordTags(tags.size(), 0, 0);
+            return SyncCycleMetrics.Outcome.UNCHANGED;
+        }
 
-        BatchTaggingRequest batchTaggingRequest = new BatchTaggingRequest(gceInstance, serviceComponent.getConfigManager().getIConfigChannel());
+        TagDeltaEngine.TagDelta delta = tagDeltaEngine.compute(tags, decision == ChangeDetector.Decision.FORCED);
+        logger.debug("Syncing GCP tags to the controller: "+ delta);
+        syncCycleMetrics.recordTags(tags.size(), delta.upserts.size(), delta.removals.size());
+        phaseStart = System.nanoTime();
         try {
-            uploadTagsToController(batchTaggingRequest);
+            // Acknowledged entities only get what was added or changed, entities we have not tagged yet the full set
+            Map<EntityType, List<Entity>> uploads = new LinkedHashMap<>();
+            for( Map.Entry<EntityType, List<Entity>> entry : entities.entrySet() ) {
+                for( Entity entity : entry.getValue() ) {
+                    Map<String,String> entityTags = tagDeltaEngine.isAcknowledged(TagDeltaEngine.entityKey(entry.getKey(), entity.entityId)) ? delta.upserts : tags;
+                    if( entityTags.isEmpty() ) continue;
+                    addTags(entity, entityTags);
+                    uploads.computeIfAbsent(entry.getKey(), k -> new ArrayList<>()).add(entity);
+                }
+            }
+            if( !uploads.isEmpty() ) {
+                BatchUploader batchUploader = new BatchUploader(controllerClient::uploadTags, agentNodeProperties.getBatchMaxEntities(), agentNodeProperties.getBatchMaxRetries());
+                List<Entity> failedEntities = batchUploader.upload(uploads);
+                if( !failedEntities.isEmpty() )
+                    throw new CommunicationErrorException("Controller did not tag "+ failedEntities.size() +" entities after retries");
+            }
+            // Only the keys that went away are deleted, and only from entities that got them from us, any other tag stays
+            for( String key : delta.removals ) {
+                for( Map.Entry<EntityType, List<Entity>> entry : entities.entrySet() )
+                    for( Entity entity : entry.getValue() )
+                        if( tagDeltaEngine.isAcknowledged(TagDeltaEngine.entityKey(entry.getKey(), entity.entityId)) )
+                            controllerClient.removeTag(entry.getKey(), entity.entityId, key);
+            }
+            tagDeltaEngine.acknowledge(tags, entityKeys);
+            changeDetector.markPushed(currentState);
+            lastCycleSynced = true;
+            saveSnapshot();
+            return SyncCycleMetrics.Outcome.SYNCED;
         } catch (CommunicationErrorException e) {
             logger.error("Communication Error in uploading tags: "+ e.getMessage());
+            return SyncCycleMetrics.Outcome.FAILED;
+        } finally {
+            syncCycleMetrics.recordPhase(SyncCycleMetrics.Phase.UPLOAD, System.nanoTime() - phaseStart);
         }
+    }
 
+    /**
+     * Compiled again only when the node properties changed since the last cycle
+     */
+    private TagGovernor getTagGovernor() {
+        AgentNodeProperties.Snapshot nodeProperties = agentNodeProperties.snapshot();
+        if( tagGovernor == null || nodeProperties != tagGovernorProperties ) {
+            tagGovernor = new TagGovernor(nodeProperties.tagsMaxCount, nodeProperties.tagsMaxValueLength, nodeProperties.tagsAllow,
+                    nodeProperties.tagsDeny, nodeProperties.tagsPriority);
+            tagGovernorProperties = nodeProperties;
+        }
+        return tagGovernor;
     }
 
-    private void sendInfoEvent(String message) {
-        sendInfoEvent(message, MetaData.getAsMap());
+    /**
+     * The node is always tagged, the tier and the machine it runs on only when their node properties enable it.
+     * Tier tags are shared by every node in the tier, so the last node to sync wins; only enable that for tiers running on identical instances.
+     */
+    private Map<EntityType, List<Entity>> buildEntities(IConfigurationChannel configChannel) {
+        Map<EntityType, List<Entity>> entities = new LinkedHashMap<>();
+        entities.put(EntityType.Node, Collections.singletonList(new Entity(configChannel.getComponentNodeName(), configChannel.getNodeID())));
+        if( agentNodeProperties.isTierTaggingEnabled() )
+            entities.put(EntityType.Tier, Collections.singletonList(new Entity(configChannel.getComponentName(), configChannel.getComponentID())));
+        if( agentNodeProperties.isMachineTaggingEnabled() ) {
+            Long machineId = getMachineId(configChannel);
+            if( machineId != null ) {
+                entities.put(EntityType.Machine, Collections.singletonList(new Entity(instanceName, machineId)));
+            } else {
+                logger.warn("Machine tagging is enabled but this agent does not know its machine id, only tagging the node");
+            }
+        }
+        return entities;
     }
 
-    private void sendInfoEvent(String message, Map map) {
-        logger.info("Sending Custom INFO Event with message: "+ message);
-        if( !map.containsKey("plugin-version") ) map.putAll(MetaData.getAsMap());
-        serviceComponent.getEventHandler().publishInfoEvent(message, map);
+    private void addTags(Entity entity, Map<String,String> tags) {
+        for( Map.Entry<String,String> tag : tags.entrySet() )
+            entity.tags.add(new Tag(tag.getKey(), tag.getValue()));
     }
 
-    private String fetchMetadata(String urlString) throws IOException {
-        URL url = new URL(urlString);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestProperty("Metadata-Flavor", "Google");
+    /**
+     * Not every agent version exposes the SIM machine id on its configuration channel, so look it up by name
+     */
+    private Long getMachineId(IConfigurationChannel configChannel) {
+        for( String getter : new String[]{ "getMachineID", "getMachineId" } ) {
+            try {
+                Object value = configChannel.getClass().getMethod(getter).invoke(configChannel);
+                if( value instanceof Number && ((Number) value).longValue() > 0 ) return ((Number) value).longValue();
+            } catch (ReflectiveOperationException ignored) {
+                //try the next name
+            }
+        }
+        return null;
+    }
 
-        BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-        StringBuilder result = new StringBuilder();
-        String line;
-        while ((line = reader.readLine()) != null) {
-            result.append(line);
+    private void saveSnapshot() {
+        TaggingSnapshot snapshot = new TaggingSnapshot();
+        snapshot.projectId = projectId;
+        snapshot.instanceName = instanceName;
+        snapshot.zone = zone;
+        ChangeDetector.State lastPushed = changeDetector.getLastPushed();
+        if( lastPushed != null ) {
+            snapshot.tagHash = lastPushed.tagHash;
+            snapshot.instanceFingerprint = lastPushed.fingerprint;
+            snapshot.labelFingerprint = lastPushed.labelFingerprint;
         }
-        reader.close();
-        return result.toString();
+        snapshot.acknowledgedTags = tagDeltaEngine.getAcknowledgedTags();
+        snapshot.acknowledgedEntities = tagDeltaEngine.getAcknowledgedEntities();
+        snapshotStore.save(snapshot);
     }
 
-    private GCEInstance fetchInstanceData() throws IOException {
-        String urlString = String.format("https://compute.googleapis.com/compute/v1/projects/%s/zones/%s/instances/%s", projectId, zone, instanceName);
-        URL url = new URL(urlString);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setRequestProperty("Authorization", "Bearer " + credentials.refreshAccessToken().getTokenValue());
+    public GCPTokenProvider getGcpTokenProvider() {
+        return gcpTokenProvider;
+    }
 
-        BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-        return gson.fromJson(reader, GCEInstance.class);
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
     }
 
-    private String getControllerBearerToken() throws CommunicationErrorException {
-        try {
-            // Prepare the POST parameters
-            StringBuilder postData = new StringBuilder();
-            postData.append(URLEncoder.encode("grant_type", StandardCharsets.UTF_8.toString()));
-            postData.append('=');
-            postData.append(URLEncoder.encode("client_credentials", StandardCharsets.UTF_8.toString()));
-            postData.append('&');
-            postData.append(URLEncoder.encode("client_id", StandardCharsets.UTF_8.toString()));
-            postData.append('=');
-            postData.append(URLEncoder.encode(properties.getProperty(CONTROLLER_APICLIENT_PROPERTY), StandardCharsets.UTF_8.toString()));
-            postData.append('&');
-            postData.append(URLEncoder.encode("client_secret", StandardCharsets.UTF_8.toString()));
-            postData.append('=');
-            postData.append(URLEncoder.encode(properties.getProperty(CONTROLLER_APISECRET_PROPERTY), StandardCharsets.UTF_8.toString()));
-
-            byte[] postDataBytes = postData.toString().getBytes(StandardCharsets.UTF_8);
-
-            // Initialize and configure HttpURLConnection
-            URL url = new URL(properties.getProperty(CONTROLLER_URL_PROPERTY) + "/controller/api/oauth/access_token");
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-            connection.setRequestProperty("Content-Length", String.valueOf(postDataBytes.length));
-            connection.setDoOutput(true);
-
-            // Write the POST parameters to the output stream
-            try (OutputStream os = connection.getOutputStream()) {
-                os.write(postDataBytes);
-                os.flush();
-            }
+    public TokenBucket getControllerRateLimiter() {
+        return controllerRateLimiter;
+    }
 
-            // Handle the response
-            int responseCode = connection.getResponseCode();
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-                String inputLine;
-                StringBuilder response = new StringBuilder();
+    public List<CircuitBreaker> getCircuitBreakers() {
+        return Arrays.asList(metadataCircuitBreaker, computeCircuitBreaker, controllerCircuitBreaker);
+    }
 
-                while ((inputLine = in.readLine()) != null) {
-                    response.append(inputLine);
-                }
-                in.close();
+    public SyncCycleMetrics getSyncCycleMetrics() {
+        return syncCycleMetrics;
+    }
 
-                AccessToken accessToken = gson.fromJson(response.toString(), AccessToken.class);
-                connection.disconnect();
-                return accessToken.access_token;
-            } else {
-                throw new CommunicationErrorException("Controller Response in Error for token request: "+ connection.getResponseMessage());
-            }
+    /**
+     * True when the last cycle ended with the controller holding the current tags, whether it uploaded or found nothing to change
+     */
+    public boolean isLastCycleSynced() {
+        return lastCycleSynced;
+    }
 
+    public HttpTransport getHttpTransport() {
+        return httpTransport;
+    }
 
-        } catch (CommunicationErrorException communicationErrorException) {
-            throw communicationErrorException;
-        } catch (Exception e) {
-            throw new CommunicationErrorException("Error in token generation, Exception: "+ e.getMessage());
+    public CompressionStats getCompressionStats() {
+        return httpTransport.getCompressionStats();
+    }
+
+    /**
+     * Abort the requests of a cycle that is being cancelled, the cycle thread sees them fail with an IOException
+     */
+    public void abortInFlight() {
+        httpTransport.abort();
+    }
+
+    public TieredInstanceFetcher getTieredInstanceFetcher() {
+        return tieredInstanceFetcher;
+    }
+
+    public HostSharedCache getHostSharedCache() {
+        return hostSharedCache;
+    }
+
+    public void shutdown() {
+        gcpTokenProvider.shutdown();
+        if( hostSharedCache != null ) hostSharedCache.close();
+        httpTransport.close();
+    }
+
+    private void sendInfoEvent(String message) {
+        sendInfoEvent(message, MetaData.getAsMap());
+    }
+
+    private void sendInfoEvent(String message, Map map) {
+        logger.info("Sending Custom INFO Event with message: "+ message);
+        if( !map.containsKey("plugin-version") ) map.putAll(MetaData.getAsMap());
+        serviceComponent.getEventHandler().publishInfoEvent(message, map);
+    }
+
+    private void updateIdentityFromMetadata() {
+        if( !metadataServer.isLoaded() ) return;
+        String metadataProjectId = metadataServer.getProjectId(), metadataInstanceName = metadataServer.getInstanceName(), metadataZone = metadataServer.getZone();
+        if( metadataProjectId == null || metadataInstanceName == null || metadataZone == null ) return;
+        if( !metadataProjectId.equals(projectId) || !metadataInstanceName.equals(instanceName) || !metadataZone.equals(zone) ) {
+            logger.info(String.format("GCP Instance identity from metadata server is %s in project %s zone %s", metadataInstanceName, metadataProjectId, metadataZone));
+            projectId = metadataProjectId;
+            instanceName = metadataInstanceName;
+            zone = metadataZone;
+            tieredInstanceFetcher.invalidateStatic();
         }
     }
 
-    private void uploadTagsToController(BatchTaggingRequest batchTaggingRequest) throws CommunicationErrorException {
-        try {
-            // Convert the JSON object to a String
-            String jsonString = gson.toJson(batchTaggingRequest);
-
-            // Initialize and configure the HttpURLConnection
-            URL url = new URL(properties.getProperty(CONTROLLER_URL_PROPERTY) + "/controller/restui/tags/tagEntitiesInBatch");
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json; utf-8");
-            connection.setRequestProperty("Authorization", "Bearer " + getControllerBearerToken());
-            connection.setDoOutput(true);
-
-            // Write the JSON body to the output stream
-            try (OutputStream os = connection.getOutputStream()) {
-                BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
-                writer.write(jsonString);
-                writer.flush();
-            }
+    /**
+     * Compute instance data, the static fields once and after that only the dynamic ones, see TieredInstanceFetcher
+     */
+    private GCEInstance fetchInstanceData() throws IOException, HttpStatusException {
+        return tieredInstanceFetcher.fetch(this::fetchInstanceBody, agentNodeProperties.getStaticFieldsTtlMinutes() * 60000);
+    }
 
-            // Handle the response
-            int responseCode = connection.getResponseCode();
-            if (responseCode != HttpURLConnection.HTTP_OK) {
-                throw new CommunicationErrorException("Error updating tags for entity, Response: "+ connection.getResponseMessage());
-            }
+    /**
+     * The metadata tree is shared with the other JVMs on this host like the Compute response, a change can take until the
+     * shared read is older than agent.tagging.hostCache.ttlSeconds to show up
+     */
+    private boolean refreshMetadata() throws IOException, HttpStatusException {
+        long ttlSeconds = agentNodeProperties.getHostCacheTtlSeconds();
+        if( hostSharedCache != null && ttlSeconds > 0 ) {
+            return metadataServer.refresh(() -> hostSharedCache.getOrFetch(HostSharedCache.METADATA_SLOT, "metadata "+ metadataServer.getRootUrl(),
+                    ttlSeconds * 1000, HOST_CACHE_MAX_WAIT_MILLIS, metadataServer::fetchTree));
+        }
+        return metadataServer.refresh();
+    }
 
-            connection.disconnect();
-        } catch (Exception e) {
-            throw new CommunicationErrorException(e.getMessage());
+    /**
+     * Shared with the other JVMs on this host for agent.tagging.hostCache.ttlSeconds so only one of them fetches it
+     */
+    private byte[] fetchInstanceBody(String fieldMask) throws IOException, HttpStatusException {
+        long ttlSeconds = agentNodeProperties.getHostCacheTtlSeconds();
+        if( hostSharedCache != null && ttlSeconds > 0 ) {
+            String key = String.format("%s/%s/%s?fields=%s", projectId, zone, instanceName, fieldMask);
+            return hostSharedCache.getOrFetch(HostSharedCache.COMPUTE_SLOT, key, ttlSeconds * 1000, HOST_CACHE_MAX_WAIT_MILLIS, () -> fetchComputeBody(fieldMask));
+        }
+        return fetchComputeBody(fieldMask);
+    }
+
+    private byte[] fetchComputeBody(String fieldMask) throws IOException, HttpStatusException {
+        String urlString = String.format("%sprojects/%s/zones/%s/instances/%s?fields=%s", computeUrl, projectId, zone, instanceName,
+                URLEncoder.encode(fieldMask, StandardCharsets.UTF_8.toString()));
+        long tokenStart = System.nanoTime();
+        String gcpToken;
+        try {
+            gcpToken = gcpTokenProvider.getToken();
+        } finally {
+            syncCycleMetrics.recordPhase(SyncCycleMetrics.Phase.GCP_TOKEN, System.nanoTime() - tokenStart);
+        }
+        HttpResult result = httpTransport.execute(new HttpCall(HttpCall.COMPUTE_ENDPOINT, "GET", urlString)
+                .header("Authorization", "Bearer " + gcpToken)
+                .acceptGzip());
+
+        if (result.statusCode != HttpURLConnection.HTTP_OK) {
+            throw new HttpStatusException("Compute API Response in Error for instance "+ instanceName +": "+ result.statusCode, result.statusCode,
+                    RetryPolicy.parseRetryAfter(result.getHeader("Retry-After")));
         }
+        return result.body;
     }
 }
@@ -0,0 +1,148 @@
+package com.singularity.ee.service.tagging.task;
+
+import java.util.Arrays;
+
+/**
+ * Phase timings, payload sizes, tag counts and outcomes of the sync cycles, recorded by the task thread and drained by TaggingMetricTask.
+ * Everything is primitive fields and arrays indexed by enum ordinal under one lock, so neither recording nor draining allocates.
+ */
+public class SyncCycleMetrics {
+
+    public enum Phase {
+        METADATA("Metadata"),
+        GCP_TOKEN("GCP Token"),
+        COMPUTE_FETCH("Compute Fetch"),
+        CONTROLLER_TOKEN("Controller Token"),
+        UPLOAD("Upload"),
+        CYCLE("Cycle");
+
+        public final String metricName;
+
+        Phase( String metricName ) {
+            this.metricName = metricName;
+        }
+    }
+
+    public enum Outcome {
+        SYNCED("Synced"),
+        UNCHANGED("Skipped Unchanged"),
+        METADATA_UNCHANGED("Skipped Metadata Unchanged"),
+        FAILED("Failed");
+
+        public final String metricName;
+
+        Outcome( String metricName ) {
+            this.metricName = metricName;
+        }
+    }
+
+    public static final Phase[] PHASES = Phase.values();
+    public static final Outcome[] OUTCOMES = Outcome.values();
+
+    private final long[] phaseCount = new long[PHASES.length];
+    private final long[] phaseTotalNanos = new long[PHASES.length];
+    private final long[] phaseMaxNanos = new long[PHASES.length];
+    private final long[] outcomeCount = new long[OUTCOMES.length];
+    private long payloadBytes;
+    private long tagsUpserted;
+    private long tagsRemoved;
+    private long deadlineExceeded;
+    private long overlapSkipped;
+    private long tagsDenied;
+    private long tagsOverLimit;
+    private long tagsTruncated;
+    //gauges, kept across drains
+    private long tagCount;
+    private long consecutiveFailures;
+
+    public synchronized void recordPhase( Phase phase, long nanos ) {
+        int i = phase.ordinal();
+        phaseCount[i]++;
+        phaseTotalNanos[i] += nanos;
+        if( nanos > phaseMaxNanos[i] ) phaseMaxNanos[i] = nanos;
+    }
+
+    public synchronized void recordPayload( int bytes ) {
+        payloadBytes += bytes;
+    }
+
+    public synchronized void recordTags( int currentTags, int upserts, int removals ) {
+        tagCount = currentTags;
+        tagsUpserted += upserts;
+        tagsRemoved += removals;
+    }
+
+    public synchronized void recordOutcome( Outcome outcome ) {
+        outcomeCount[outcome.ordinal()]++;
+        consecutiveFailures = outcome == Outcome.FAILED ? consecutiveFailures + 1 : 0;
+    }
+
+    public synchronized void recordGoverned( int denied, int overLimit, int truncated ) {
+        tagsDenied += denied;
+        tagsOverLimit += overLimit;
+        tagsTruncated += truncated;
+    }
+
+    public synchronized void recordDeadlineExceeded() {
+        deadlineExceeded++;
+    }
+
+    public synchronized void recordOverlapSkipped() {
+        overlapSkipped++;
+    }
+
+    public synchronized long getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * Copy everything into target and reset the counters here, the gauges stay as they are
+     */
+    public synchronized void drainTo( SyncCycleMetrics target ) {
+        synchronized (target) {
+            System.arraycopy(phaseCount, 0, target.phaseCount, 0, phaseCount.length);
+            System.arraycopy(phaseTotalNanos, 0, target.phaseTotalNanos, 0, phaseTotalNanos.length);
+            System.arraycopy(phaseMaxNanos, 0, target.phaseMaxNanos, 0, phaseMaxNanos.length);
+            System.arraycopy(outcomeCount, 0, target.outcomeCount, 0, outcomeCount.length);
+            target.payloadBytes = payloadBytes;
+            target.tagsUpserted = tagsUpserted;
+            target.tagsRemoved = tagsRemoved;
+            target.deadlineExceeded = deadlineExceeded;
+            target.overlapSkipped = overlapSkipped;
+            target.tagsDenied = tagsDenied;
+            target.tagsOverLimit = tagsOverLimit;
+            target.tagsTruncated = tagsTruncated;
+            target.tagCount = tagCount;
+            target.consecutiveFailures = consecutiveFailures;
+        }
+        Arrays.fill(phaseCount, 0);
+        Arrays.fill(phaseTotalNanos, 0);
+        Arrays.fill(phaseMaxNanos, 0);
+        Arrays.fill(outcomeCount, 0);
+        payloadBytes = 0;
+        tagsUpserted = 0;
+        tagsRemoved = 0;
+        deadlineExceeded = 0;
+        overlapSkipped = 0;
+        tagsDenied = 0;
+        tagsOverLimit = 0;
+        tagsTruncated = 0;
+    }
+
+    public synchronized long getPhaseCount( Phase phase ) { return phaseCount[phase.ordinal()]; }
+    public synchronized long getPhaseAverageMillis( Phase phase ) {
+        int i = phase.ordinal();
+        return phaseCount[i] == 0 ? 0 : phaseTotalNanos[i] / phaseCount[i] / 1000000;
+    }
+    public synchronized long getPhaseMaxMillis( Phase phase ) { return phaseMaxNanos[phase.ordinal()] / 1000000; }
+    public synchronized long getOutcomeCount( Outcome outcome ) { return outcomeCount[outcome.ordinal()]; }
+    public synchronized long getPayloadBytes() { return payloadBytes; }
+    public synchronized long getTagsUpserted() { return tagsUpserted; }
+    public synchronized long getTagsRemoved() { return tagsRemoved; }
+    public synchronized long getTagCount() { return tagCount; }
+    public synchronized long getDeadlineExceeded() { return deadlineExceeded; }
+    public synchronized long getOverlapSkipped() { return overlapSkipped; }
+    public synchronized long getTagsDenied() { return tagsDenied; }
+    public synchronized long getTagsOverLimit() { return tagsOverLimit; }
+    public synchronized long getTagsTruncated() { return tagsTruncated; }
+}
@@ -0,0 +1,198 @@
+package com.singularity.ee.service.tagging.task;
+
+import com.singularity.ee.agent.util.log4j.ADLoggerFactory;
+import com.singularity.ee.agent.util.log4j.IADLogger;
+import com.singularity.ee.service.tagging.AgentNodeProperties;
+import com.singularity.ee.service.tagging.exception.ConfigurationException;
+import com.singularity.ee.service.tagging.exception.NotRunningOnException;
+import com.singularity.ee.util.javaspecific.threads.IAgentRunnable;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What the agent scheduler actually runs for the sync: it only hands the cycle to our own executor and returns,
+ * so slow GCP or controller calls never hold a thread other agent services share.
+ * At most one cycle runs at a time, a tick that finds the previous cycle still running is skipped.
+ * Every cycle has a hard deadline, when it passes the cycle is interrupted and its in flight requests are aborted,
+ * and shutdown() does the same for whatever is running when the service stops.
+ * Cycles run on a virtual thread when the JVM has them, otherwise on one daemon platform thread.
+ * The GCPTaggingTask itself is created by the first cycle, so finding out whether we are on GCP, reading the config
+ * and loading credentials never happen on the thread starting the agent. If the config is broken every later tick returns
+ * right away; if no metadata server was found, later ticks try to create the task again, and MetadataProbe only probes
+ * again once its not found answer expires. A node in passive mode, tagged by the fleet tagger instead, never creates it.
+ */
+public class SyncCycleRunner implements IAgentRunnable {
+    private static final IADLogger logger = ADLoggerFactory.getLogger((String)"com.singularity.dynamicservice.tagging.SyncCycleRunner");
+    private static final String THREAD_NAME = "AppDynamics-GCPTagging-Sync";
+
+    private final TaskFactory taskFactory;
+    private volatile GCPTaggingTask task;
+    private volatile boolean unavailable = false;
+    private final AgentNodeProperties agentNodeProperties;
+    private final ExecutorService cycleExecutor;
+    private final ScheduledThreadPoolExecutor deadlineExecutor;
+    private final AtomicBoolean cycleRunning = new AtomicBoolean(false);
+    private final AtomicLong cycleSequence = new AtomicLong();
+    private volatile Future<?> currentCycle;
+    private volatile long lastCycleStartMillis = 0;
+    private volatile boolean shutdown = false;
+
+    public interface TaskFactory {
+        GCPTaggingTask create() throws ConfigurationException, NotRunningOnException;
+    }
+
+    public SyncCycleRunner( TaskFactory taskFactory, AgentNodeProperties agentNodeProperties ) {
+        this.taskFactory = taskFactory;
+        this.agentNodeProperties = agentNodeProperties;
+        this.cycleExecutor = newCycleExecutor();
+        this.deadlineExecutor = new ScheduledThreadPoolExecutor(1, daemonThreadFactory("AppDynamics-GCPTagging-Deadline"));
+        this.deadlineExecutor.setRemoveOnCancelPolicy(true);
+    }
+
+    @Override
+    public void run() {
+        if( shutdown || unavailable ) return;
+        if( agentNodeProperties.isPassive() ) {
+            logger.debug("GCP tagging is passive on this node, the fleet tagger keeps its tags, not syncing");
+            return;
+        }
+        if( !cycleRunning.compareAndSet(false, true) ) {
+            logger.warn("Previous GCP tagging sync cycle is still running, skipping this one");
+            GCPTaggingTask current = task;
+            if( current != null ) current.getSyncCycleMetrics().recordOverlapSkipped();
+            return;
+        }
+        try {
+            currentCycle = cycleExecutor.submit(this::runCycle);
+        } catch (RejectedExecutionException e) {
+            cycleRunning.set(false);
+            logger.debug("Sync executor is shut down, not starting a cycle");
+        }
+    }
+
+    /**
+     * @return when the last cycle started, in epoch millis, 0 if none has run yet
+     */
+    public long getLastCycleStartMillis() {
+        return lastCycleStartMillis;
+    }
+
+    /**
+     * @return the task, or null until the first cycle has found us on GCP and created it
+     */
+    public GCPTaggingTask getTask() {
+        return task;
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        GCPTaggingTask current = task;
+        Future<?> cycle = currentCycle;
+        if( cycle != null && !cycle.isDone() ) {
+            logger.info("Cancelling the running GCP tagging sync cycle");
+            cycle.cancel(true);
+            if( current != null ) current.abortInFlight();
+        }
+        cycleExecutor.shutdownNow();
+        deadlineExecutor.shutdownNow();
+        if( current != null ) current.shutdown();
+    }
+
+    /**
+     * @return the task, creating it on the first call; null if we are not on GCP, not configured, or shutting down
+     */
+    private GCPTaggingTask getOrCreateTask() {
+        if( task != null ) return task;
+        GCPTaggingTask created;
+        try {
+            created = taskFactory.create();
+        } catch (NotRunningOnException notRunningOnException) {
+            logger.debug("This agent doesn't seem to be running on Google Cloud");
+            return null;
+        } catch (ConfigurationException e) {
+            logger.error("Not able to start Google Cloud Tag Service Task: "+ e.toString());
+            unavailable = true;
+            return null;
+        }
+        if( shutdown ) { //stopped while we were starting up, shutdown() could not see this one
+            created.shutdown();
+            return null;
+        }
+        task = created;
+        return created;
+    }
+
+    private void runCycle() {
+        long deadlineSeconds = agentNodeProperties.getCycleDeadlineSeconds();
+        long cycle = cycleSequence.incrementAndGet();
+        lastCycleStartMillis = System.currentTimeMillis();
+        Thread cycleThread = Thread.currentThread();
+        ScheduledFuture<?> deadline;
+        try {
+            deadline = deadlineExecutor.schedule(() -> expire(cycle, cycleThread, deadlineSeconds), deadlineSeconds, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+            cycleRunning.set(false);
+            return; //shutting down
+        }
+        try {
+            GCPTaggingTask current = getOrCreateTask();
+            if( current != null ) current.run();
+        } catch (RuntimeException e) {
+            logger.error("Unexpected error in GCP tagging sync cycle: "+ e.toString(), (Throwable)e);
+        } finally {
+            deadline.cancel(false);
+            Thread.interrupted(); //do not leave a late deadline interrupt behind on a pooled thread
+            cycleRunning.set(false);
+        }
+    }
+
+    private void expire( long cycle, Thread cycleThread, long deadlineSeconds ) {
+        if( !cycleRunning.get() || cycleSequence.get() != cycle ) return;
+        logger.warn("GCP tagging sync cycle passed its deadline of "+ deadlineSeconds +" seconds, cancelling it");
+        GCPTaggingTask current = task;
+        cycleThread.interrupt();
+        if( current != null ) {
+            current.getSyncCycleMetrics().recordDeadlineExceeded();
+            current.abortInFlight();
+        }
+    }
+
+    /**
+     * Executors.newThreadPerTaskExecutor with named virtual threads on Java 21 and later, looked up by reflection since we compile for Java 8
+     */
+    private static ExecutorService newCycleExecutor() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, THREAD_NAME +"-", 1L);
+            ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            Method newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            logger.debug("GCP tagging sync cycles run on virtual threads");
+            return (ExecutorService) newThreadPerTaskExecutor.invoke(null, threadFactory);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(1), daemonThreadFactory(THREAD_NAME));
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
+
+    private static ThreadFactory daemonThreadFactory( String name ) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
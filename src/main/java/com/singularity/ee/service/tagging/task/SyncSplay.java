@@ -0,0 +1,57 @@
+package com.singularity.ee.service.tagging.task;
+
+import com.singularity.ee.agent.appagent.kernel.ServiceComponent;
+import com.singularity.ee.agent.appagent.kernel.spi.IConfigurationChannel;
+import com.singularity.ee.agent.appagent.kernel.spi.IServiceContext;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Deterministic per node offset into the sync window, so a fleet that starts together does not sync together.
+ * The offset is keyed on the host and the node's configured application, tier and node names, which are known before the
+ * agent registers and do not change when the JVM restarts, so the same node always lands on the same offset
+ * while different nodes spread evenly over the window.
+ */
+public class SyncSplay {
+
+    /**
+     * @return seconds in [0, windowSeconds) for this node key
+     */
+    public static long offsetSeconds( String nodeKey, long windowSeconds ) {
+        if( windowSeconds <= 1 ) return 0;
+        return Long.remainderUnsigned(fnv1a64(nodeKey), windowSeconds);
+    }
+
+    /**
+     * The host plus the configured application, tier and node names, or the agent's runtime dir when the node name is not
+     * configured, never the node id or pid, the first is not assigned yet at start and the second changes every restart
+     */
+    public static String nodeKey( ServiceComponent serviceComponent, IServiceContext serviceContext ) {
+        String hostName;
+        try {
+            hostName = InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            hostName = "unknown";
+        }
+        try {
+            IConfigurationChannel configChannel = serviceComponent.getConfigManager().getIConfigChannel();
+            if( configChannel != null && configChannel.getComponentNodeName() != null && !configChannel.getComponentNodeName().isEmpty() )
+                return hostName +"/"+ configChannel.getApplicationName() +"/"+ configChannel.getComponentName() +"/"+ configChannel.getComponentNodeName();
+        } catch (RuntimeException noConfigYet) {
+            //fall through to the install identity
+        }
+        String agentDir = serviceContext == null ? null : serviceContext.getAgentRuntimeDir();
+        if( agentDir == null && serviceContext != null ) agentDir = serviceContext.getInstallDir();
+        return hostName +"/"+ agentDir;
+    }
+
+    private static long fnv1a64( String value ) {
+        long hash = 0xcbf29ce484222325L;
+        for( byte b : value.getBytes(StandardCharsets.UTF_8) ) {
+            hash ^= (b & 0xff);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
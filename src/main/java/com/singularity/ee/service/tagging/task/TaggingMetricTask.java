@@ -7,8 +7,15 @@ import com.singularity.ee.agent.util.log4j.ADLoggerFactory;
 import com.singularity.ee.agent.util.log4j.IADLogger;
 import com.singularity.ee.service.tagging.AgentNodeProperties;
 import com.singularity.ee.service.tagging.MetaData;
+import com.singularity.ee.service.tagging.auth.GCPTokenProvider;
+import com.singularity.ee.service.tagging.gcp.TieredInstanceFetcher;
+import com.singularity.ee.service.tagging.http.CircuitBreaker;
+import com.singularity.ee.service.tagging.http.CompressionStats;
+import com.singularity.ee.service.tagging.http.LatencyStats;
+import com.singularity.ee.service.tagging.sync.HostSharedCache;
 import com.singularity.ee.util.javaspecific.threads.IAgentRunnable;
 
+import java.util.HashMap;
 import java.util.Map;
 
 public class TaggingMetricTask implements IAgentRunnable {
@@ -17,12 +24,21 @@ public class TaggingMetricTask implements IAgentRunnable {
     private AgentNodeProperties agentNodeProperties;
     private ServiceComponent serviceComponent;
     private IServiceContext serviceContext;
+    private SyncCycleRunner syncCycleRunner;
+    private GCPTaggingTask gcpTaggingTask;
+    private long lastTokenHits, lastTokenMisses, lastTokenRefreshes, lastRetries, lastThrottled;
+    private long lastHostCacheHits, lastHostCacheFetches, lastHostCacheBypasses;
+    private long lastFullFetches, lastDynamicFetches;
+    private long lastRequestBytesRaw, lastRequestBytesWire, lastResponseBytesWire, lastResponseBytesDecoded, lastGzipFallbacks;
+    private final Map<String, Long> lastRejectedCounts = new HashMap<>();
+    private final SyncCycleMetrics syncCycleMetrics = new SyncCycleMetrics();
 
-    public TaggingMetricTask (IDynamicService agentService, AgentNodeProperties agentNodeProperties, ServiceComponent serviceComponent, IServiceContext iServiceContext) {
+    public TaggingMetricTask (IDynamicService agentService, AgentNodeProperties agentNodeProperties, ServiceComponent serviceComponent, IServiceContext iServiceContext, SyncCycleRunner syncCycleRunner) {
         this.agentNodeProperties=agentNodeProperties;
         this.agentService=agentService;
         this.serviceComponent=serviceComponent;
         this.serviceContext=iServiceContext;
+        this.syncCycleRunner=syncCycleRunner;
     }
 
     /**
@@ -39,6 +55,116 @@ public class TaggingMetricTask implements IAgentRunnable {
     @Override
     public void run() {
         serviceComponent.getMetricHandler().reportAverageMetric("Agent|Tagging|Enabled", (agentNodeProperties.isEnabled() ? 1 : 0));
+        gcpTaggingTask = syncCycleRunner == null ? null : syncCycleRunner.getTask(); //null until the first cycle found us on GCP
+        if( gcpTaggingTask != null ) {
+            reportTokenMetrics(gcpTaggingTask.getGcpTokenProvider());
+            reportRetryMetrics();
+            reportLatencyMetrics();
+            reportCompressionMetrics(gcpTaggingTask.getCompressionStats());
+            reportSyncCycleMetrics();
+            if( gcpTaggingTask.getHostSharedCache() != null ) reportHostCacheMetrics(gcpTaggingTask.getHostSharedCache());
+            reportInstanceFetchMetrics(gcpTaggingTask.getTieredInstanceFetcher());
+        }
+    }
+
+    private void reportHostCacheMetrics(HostSharedCache hostSharedCache) {
+        long hits = hostSharedCache.getHitCount(), fetches = hostSharedCache.getFetchCount(), bypasses = hostSharedCache.getBypassCount();
+        serviceComponent.getMetricHandler().reportAverageMetric("Agent|Tagging|Host Cache|Hits", hits - lastHostCacheHits);
+        serviceComponent.getMetricHandler().reportAverageMetric("Agent|Tagging|Host Cache|Fetches", fetches - lastHostCacheFetches);
+        serviceComponent.getMetricHandler().reportAverageMetric("Agent|Tagging|Host Cache|Bypassed", bypasses - lastHostCacheBypasses);
+        lastHostCacheHits = hits;
+        lastHostCacheFetches = fetches;
+        lastHostCacheBypasses = bypasses;
+    }
+
+    private void reportInstanceFetchMetrics(TieredInstanceFetcher tieredInstanceFetcher) {
+        long fullFetches = tieredInstanceFetcher.getFullFetchCount(), dynamicFetches = tieredInstanceFetcher.getDynamicFetchCount();
+        serviceComponent.getMetricHandler().reportAverageMetric("Agent|Tagging|Compute|Full Fetches", fullFetches - lastFullFetches);
+        serviceComponent.getMetricHandler().reportAverageMetric("Agent|Tagging|Compute|Dynamic Fetches", dynamicFetches - lastDynamicFetches);
+        lastFullFetches = fullFetches;
+        lastDynamicFetches = dynamicFetches;
+    }
+
+    private void reportSyncCycleMetrics() {
+        gcpTaggingTask.getSyncCycleMetrics().drainTo(syncCycleMetrics);
+        for( SyncCycleMetrics.Phase phase : SyncCycleMetrics.PHASES ) {
+            String prefix = "Agent|Tagging|Sync|"+ phase.metricName +"|";
+            long count = syncCycleMetrics.getPhaseCount(phase);
+            serviceComponent.getMetricHandler().reportAverageMetric(prefix +"Calls", count);
+            if( count == 0 ) continue;
+            serviceComponent.getMetricHandler().reportAverageMetric(prefix +"Average Time (ms)", syncCycleMetrics.getPhaseAverageMillis(phase));
+            serviceComponent.getMetricHandler().reportAverageMetric(prefix +"Max Time (ms)", syncCycleMetrics.getPhaseMaxMillis(phase));
+        }
+        for( SyncCycleMetrics.Outcome outcome : SyncCycleMetrics.OUTCOMES )
+            serviceComponent.getMetricHandler().reportAverageMetric("Agent|Tagging|Sync|Cycles "+ outcome.metricName, syncCycleMetrics.getOutcomeCount(outcome));
+        serviceComponent.getMetricHandler().reportAverageMetric("Agent|Tagging|Sync|Cycles Skipped Overlap", syncCycleMetrics.getOverlapSkipped());
+        serviceComponent.getMetricHandler().reportAverageMetric("Agent|Tagging|Sync|Deadline Exceeded", syncCycleMetrics.getDeadlineExceeded());
+        serviceComponent.getMetricHandler().reportAverageMetric("Agent|Tagging|Sync|Consecutive Failures", syncCycleMetrics.getConsecutiveFailures());
+        serviceComponent.getMetricHandler().reportAverageMetric("Agent|Tagging|Sync|Payload Bytes", syncCycleMetrics.getPayloadBytes());
+        serviceComponent.getMetricHandler().reportAverageMetric("Agent|Tagging|Sync|Tags", syncCycleMetrics.getTagCount());
+        serviceComponent.getMetricHandler().reportAverageMetric("Agent|Tagging|Sync|Tags Upserted", syncCycleMetrics.getTagsUpserted());
+        serviceComponent.getMetricHandler().reportAverageMetric("Agent|Tagging|Sync|Tags Removed", syncCycleMetrics.getTagsRemoved());
+        serviceComponent.getMetricHandler().reportAverageMetric("Agent|Tagging|Governor|Tags Dropped Denied", syncCycleMetrics.getTagsDenied());
+        serviceComponent.getMetricHandler().reportAverageMetric("Agent|Tagging|Governor|Tags Dropped Over Limit", syncCycleMetrics.getTagsOverLimit());
+        serviceComponent.getMetricHandler().reportAverageMetric("Agent|Tagging|Governor|Values Truncated", syncCycleMetrics.getTagsTruncated());
+    }
+
+    private void reportLatencyMetrics() {
+        for( Map.Entry<String, LatencyStats> entry : gcpTaggingTask.getHttpTransport().getLatencyStats().entrySet() ) {
+            LatencyStats stats = entry.getValue().drain();
+            String prefix = "Agent|Tagging|HTTP|"+ entry.getKey() +"|";
+            serviceComponent.getMetricHandler().reportAverageMetric(prefix +"Calls", stats.getCount());
+            if( stats.getCount() == 0 ) continue;
+            serviceComponent.getMetricHandler().reportAverageMetric(prefix +"Average Latency (ms)", stats.getAverageMillis());
+            serviceComponent.getMetricHandler().reportAverageMetric(prefix +"Max Latency (ms)", stats.getMaxMillis());
+            for( int statusClass = 2; statusClass <= 5; statusClass++ )
+                serviceComponent.getMetricHandler().reportAverageMetric(prefix + statusClass +"xx Responses", stats.getStatusClassCount(statusClass));
+            serviceComponent.getMetricHandler().reportAverageMetric(prefix +"IO Errors", stats.getIoErrorCount());
+        }
+    }
+
+    private void reportCompressionMetrics(CompressionStats stats) {
+        long requestBytesRaw = stats.requestBytesRaw.get(), requestBytesWire = stats.requestBytesWire.get();
+        long responseBytesWire = stats.responseBytesWire.get(), responseBytesDecoded = stats.responseBytesDecoded.get();
+        long gzipFallbacks = stats.gzipFallbacks.get();
+        serviceComponent.getMetricHandler().reportAverageMetric("Agent|Tagging|HTTP|Request Bytes Uncompressed", requestBytesRaw - lastRequestBytesRaw);
+        serviceComponent.getMetricHandler().reportAverageMetric("Agent|Tagging|HTTP|Request Bytes On Wire", requestBytesWire - lastRequestBytesWire);
+        serviceComponent.getMetricHandler().reportAverageMetric("Agent|Tagging|HTTP|Response Bytes On Wire", responseBytesWire - lastResponseBytesWire);
+        serviceComponent.getMetricHandler().reportAverageMetric("Agent|Tagging|HTTP|Response Bytes Uncompressed", responseBytesDecoded - lastResponseBytesDecoded);
+        serviceComponent.getMetricHandler().reportAverageMetric("Agent|Tagging|HTTP|Gzip Fallbacks", gzipFallbacks - lastGzipFallbacks);
+        lastRequestBytesRaw = requestBytesRaw;
+        lastRequestBytesWire = requestBytesWire;
+        lastResponseBytesWire = responseBytesWire;
+        lastResponseBytesDecoded = responseBytesDecoded;
+        lastGzipFallbacks = gzipFallbacks;
+    }
+
+    private void reportRetryMetrics() {
+        long retries = gcpTaggingTask.getRetryPolicy().getRetryCount();
+        serviceComponent.getMetricHandler().reportAverageMetric("Agent|Tagging|Retries", retries - lastRetries);
+        lastRetries = retries;
+        long throttled = gcpTaggingTask.getControllerRateLimiter().getThrottledCount();
+        serviceComponent.getMetricHandler().reportAverageMetric("Agent|Tagging|Controller Rate Limited", throttled - lastThrottled);
+        lastThrottled = throttled;
+        for( CircuitBreaker circuitBreaker : gcpTaggingTask.getCircuitBreakers() ) {
+            String prefix = "Agent|Tagging|Circuit Breaker|"+ circuitBreaker.getEndpoint() +"|";
+            serviceComponent.getMetricHandler().reportAverageMetric(prefix +"State", circuitBreaker.getState().metricValue);
+            serviceComponent.getMetricHandler().reportAverageMetric(prefix +"Consecutive Failures", circuitBreaker.getConsecutiveFailures());
+            long rejected = circuitBreaker.getRejectedCount();
+            Long lastRejected = lastRejectedCounts.get(circuitBreaker.getEndpoint());
+            serviceComponent.getMetricHandler().reportAverageMetric(prefix +"Rejected Calls", rejected - (lastRejected == null ? 0 : lastRejected));
+            lastRejectedCounts.put(circuitBreaker.getEndpoint(), rejected);
+        }
+    }
+
+    private void reportTokenMetrics(GCPTokenProvider tokenProvider) {
+        long hits = tokenProvider.getHitCount(), misses = tokenProvider.getMissCount(), refreshes = tokenProvider.getRefreshCount();
+        serviceComponent.getMetricHandler().reportAverageMetric("Agent|Tagging|GCP Token|Cache Hits", hits - lastTokenHits);
+        serviceComponent.getMetricHandler().reportAverageMetric("Agent|Tagging|GCP Token|Cache Misses", misses - lastTokenMisses);
+        serviceComponent.getMetricHandler().reportAverageMetric("Agent|Tagging|GCP Token|Refreshes", refreshes - lastTokenRefreshes);
+        lastTokenHits = hits;
+        lastTokenMisses = misses;
+        lastTokenRefreshes = refreshes;
     }
 
     private void sendInfoEvent(String message) {
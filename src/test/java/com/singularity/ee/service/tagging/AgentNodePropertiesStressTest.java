@@ -0,0 +1,190 @@
+package com.singularity.ee.service.tagging;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writers keep changing node properties while readers take snapshots. Every parsed field of a snapshot has to be the value
+ * of its own property map, which is the property as of one single update, a reader must never see a property go back
+ * to an older value than one it has already seen, and never one older than the last update its writer finished.
+ * Reading, the snapshot and the typed getters, must not allocate.
+ */
+public class AgentNodePropertiesStressTest {
+    private static final int UPDATES_PER_WRITER = 20000;
+    private static final int READERS = 4;
+    private static final int READ_LOOP = 1000000;
+    private static final long ALLOCATION_SLACK_BYTES = 4096; //a stray allocation by the JIT or the MXBean, not one per read
+
+    private static final Map<String, ToLongFunction<AgentNodeProperties.Snapshot>> NUMERIC_FIELDS = new LinkedHashMap<>();
+    static {
+        NUMERIC_FIELDS.put(AgentNodeProperties.SYNC_FREQUENCY_PROPERTY, s -> s.syncFrequencyMinutes);
+        NUMERIC_FIELDS.put(AgentNodeProperties.FORCE_PUSH_CYCLES_PROPERTY, s -> s.forcePushCycles);
+        NUMERIC_FIELDS.put(AgentNodeProperties.METADATA_GATE_MAX_SKIPPED_CYCLES_PROPERTY, s -> s.metadataGateMaxSkippedCycles);
+        NUMERIC_FIELDS.put(AgentNodeProperties.BATCH_MAX_ENTITIES_PROPERTY, s -> s.batchMaxEntities);
+        NUMERIC_FIELDS.put(AgentNodeProperties.CONTROLLER_RATE_PER_MINUTE_PROPERTY, s -> s.controllerRequestsPerMinute);
+        NUMERIC_FIELDS.put(AgentNodeProperties.CONTROLLER_BURST_PROPERTY, s -> s.controllerBurst);
+        NUMERIC_FIELDS.put(AgentNodeProperties.GZIP_MIN_BYTES_PROPERTY, s -> s.gzipMinBytes);
+        NUMERIC_FIELDS.put(AgentNodeProperties.CYCLE_DEADLINE_PROPERTY, s -> s.cycleDeadlineSeconds);
+        NUMERIC_FIELDS.put(AgentNodeProperties.TAGS_MAX_COUNT_PROPERTY, s -> s.tagsMaxCount);
+        NUMERIC_FIELDS.put(AgentNodeProperties.TAGS_MAX_VALUE_LENGTH_PROPERTY, s -> s.tagsMaxValueLength);
+        NUMERIC_FIELDS.put(AgentNodeProperties.HOST_CACHE_TTL_PROPERTY, s -> s.hostCacheTtlSeconds);
+    }
+
+    @Test
+    public void snapshotsAreNeverTorn() throws InterruptedException {
+        AgentNodeProperties agentNodeProperties = new AgentNodeProperties();
+        Map<String, AtomicLong> completed = new LinkedHashMap<>(); //last value each writer's updateProperty has returned from
+        for( String property : NUMERIC_FIELDS.keySet() ) completed.put(property, new AtomicLong());
+        ConcurrentLinkedQueue<String> tornReads = new ConcurrentLinkedQueue<>();
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicLong snapshotsChecked = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> writers = new ArrayList<>();
+        for( String property : NUMERIC_FIELDS.keySet() ) {
+            writers.add(new Thread(() -> {
+                await(start);
+                for( long value = 1; value <= UPDATES_PER_WRITER; value++ ) {
+                    agentNodeProperties.updateProperty(property, Long.toString(value));
+                    completed.get(property).set(value);
+                }
+            }, "writer-"+ property));
+        }
+        writers.add(new Thread(() -> {
+            await(start);
+            for( int i = 0; i < UPDATES_PER_WRITER; i++ ) {
+                agentNodeProperties.updateProperty(AgentNodeProperties.ENABLED_PROPERTY, Boolean.toString(i % 2 == 0));
+                agentNodeProperties.updateProperty(AgentNodeProperties.TAGS_DENY_PROPERTY, "GCP|Label|deny-"+ i);
+            }
+        }, "writer-mixed"));
+        List<Thread> readers = new ArrayList<>();
+        for( int r = 0; r < READERS; r++ ) {
+            readers.add(new Thread(() -> {
+                await(start);
+                Map<String, Long> lastSeen = new LinkedHashMap<>();
+                Map<String, Long> completedBefore = new LinkedHashMap<>();
+                while (writing.get()) {
+                    for( Map.Entry<String, AtomicLong> entry : completed.entrySet() ) completedBefore.put(entry.getKey(), entry.getValue().get());
+                    AgentNodeProperties.Snapshot snapshot = agentNodeProperties.snapshot();
+                    String torn = check(snapshot, lastSeen);
+                    if( torn == null ) torn = checkFresh(snapshot, completedBefore, completed);
+                    snapshotsChecked.incrementAndGet();
+                    if( torn != null ) {
+                        tornReads.add(torn);
+                        return;
+                    }
+                }
+            }, "reader-"+ r));
+        }
+        writers.forEach(Thread::start);
+        readers.forEach(Thread::start);
+        start.countDown();
+        for( Thread writer : writers ) writer.join(TimeUnit.MINUTES.toMillis(2));
+        writing.set(false);
+        for( Thread reader : readers ) reader.join(TimeUnit.MINUTES.toMillis(1));
+
+        assertTrue("Torn snapshots: "+ tornReads, tornReads.isEmpty());
+        assertTrue("Readers checked no snapshots", snapshotsChecked.get() > 0);
+        String finalCheck = check(agentNodeProperties.snapshot(), new LinkedHashMap<>());
+        assertTrue(finalCheck, finalCheck == null);
+        for( Map.Entry<String, ToLongFunction<AgentNodeProperties.Snapshot>> field : NUMERIC_FIELDS.entrySet() )
+            assertTrue(field.getKey() +" lost updates", field.getValue().applyAsLong(agentNodeProperties.snapshot()) == UPDATES_PER_WRITER);
+    }
+
+    @Test
+    public void readsDoNotAllocate() {
+        java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threadMXBean;
+        Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled());
+        AgentNodeProperties agentNodeProperties = new AgentNodeProperties();
+        agentNodeProperties.updateProperty(AgentNodeProperties.ENABLED_PROPERTY, "true");
+        agentNodeProperties.updateProperty(AgentNodeProperties.BATCH_MAX_ENTITIES_PROPERTY, "250");
+        agentNodeProperties.updateProperty(AgentNodeProperties.TAGS_DENY_PROPERTY, "GCP|Label|secret");
+        long threadId = Thread.currentThread().getId();
+
+        long sink = read(agentNodeProperties, READ_LOOP); //warm up, so what is measured is compiled code
+        long baselineStart = allocations.getThreadAllocatedBytes(threadId);
+        long baseline = allocations.getThreadAllocatedBytes(threadId) - baselineStart;
+        long start = allocations.getThreadAllocatedBytes(threadId);
+        sink += read(agentNodeProperties, READ_LOOP);
+        long allocated = allocations.getThreadAllocatedBytes(threadId) - start - baseline;
+
+        assertTrue("Reads allocated "+ allocated +" bytes over "+ READ_LOOP +" loops", allocated <= ALLOCATION_SLACK_BYTES);
+        assertTrue(sink != 0);
+    }
+
+    private static long read( AgentNodeProperties agentNodeProperties, int loops ) {
+        long sink = 0;
+        for( int i = 0; i < loops; i++ ) {
+            AgentNodeProperties.Snapshot snapshot = agentNodeProperties.snapshot();
+            if( agentNodeProperties.isEnabled() ) sink++;
+            sink += snapshot.batchMaxEntities + snapshot.tagsMaxCount;
+            sink += agentNodeProperties.getSyncFrequencyMinutes() + agentNodeProperties.getBatchMaxEntities() + agentNodeProperties.getControllerBurst()
+                    + agentNodeProperties.getHostCacheTtlSeconds() + agentNodeProperties.getMetadataGateMaxSkippedCycles();
+            if( agentNodeProperties.isPassive() || agentNodeProperties.isTierTaggingEnabled() ) sink--;
+            sink += agentNodeProperties.getProperty(AgentNodeProperties.TAGS_DENY_PROPERTY).length();
+        }
+        return sink;
+    }
+
+    /**
+     * @return what is wrong with the snapshot, null when no property is older than the last update its writer had finished
+     * before the snapshot was taken, or newer than the one it may have been in the middle of, the raw property is compared
+     * since parsed fields are clamped and {@link #check} already ties them to it
+     */
+    private static String checkFresh( AgentNodeProperties.Snapshot snapshot, Map<String, Long> completedBefore, Map<String, AtomicLong> completed ) {
+        for( String property : NUMERIC_FIELDS.keySet() ) {
+            String raw = snapshot.getProperty(property);
+            long seen = raw == null ? 0 : Long.parseLong(raw);
+            long before = completedBefore.get(property);
+            if( seen < before ) return property +" is "+ seen +" but update "+ before +" had already finished";
+            long after = completed.get(property).get();
+            if( seen > after + 1 ) return property +" is "+ seen +" but only "+ after +" had finished";
+        }
+        return null;
+    }
+
+    /**
+     * @return what is wrong with the snapshot, null when every field agrees with its own map and nothing went backwards
+     */
+    private static String check( AgentNodeProperties.Snapshot snapshot, Map<String, Long> lastSeen ) {
+        for( Map.Entry<String, ToLongFunction<AgentNodeProperties.Snapshot>> field : NUMERIC_FIELDS.entrySet() ) {
+            String raw = snapshot.getProperty(field.getKey());
+            if( raw == null ) continue;
+            long parsed = field.getValue().applyAsLong(snapshot);
+            long expected = Long.parseLong(raw);
+            if( parsed != expected ) return field.getKey() +" field is "+ parsed +" but its property is "+ raw;
+            Long previous = lastSeen.put(field.getKey(), expected);
+            if( previous != null && previous > expected ) return field.getKey() +" went back from "+ previous +" to "+ expected;
+        }
+        String enabled = snapshot.getProperty(AgentNodeProperties.ENABLED_PROPERTY);
+        if( enabled != null && Boolean.parseBoolean(enabled) != snapshot.enabled )
+            return AgentNodeProperties.ENABLED_PROPERTY +" field is "+ snapshot.enabled +" but its property is "+ enabled;
+        String deny = snapshot.getProperty(AgentNodeProperties.TAGS_DENY_PROPERTY);
+        if( deny != null && !deny.equals(snapshot.tagsDeny) )
+            return AgentNodeProperties.TAGS_DENY_PROPERTY +" field is "+ snapshot.tagsDeny +" but its property is "+ deny;
+        return null;
+    }
+
+    private static void await( CountDownLatch latch ) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.singularity.ee.service.tagging.model;
+
+import com.google.gson.Gson;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TaggingJsonCodecTest {
+    private final TaggingJsonCodec codec = new TaggingJsonCodec();
+    private final Gson gson = new Gson();
+
+    private static BatchTaggingRequest request( EntityType type, Entity... entities ) {
+        BatchTaggingRequest request = new BatchTaggingRequest(type);
+        request.entities.addAll(Arrays.asList(entities));
+        return request;
+    }
+
+    private static Entity entity( String name, long id, String... keyValues ) {
+        Entity entity = new Entity(name, id);
+        for( int i = 0; i < keyValues.length; i += 2 )
+            entity.tags.add(new Tag(keyValues[i], keyValues[i + 1]));
+        return entity;
+    }
+
+    private void assertSameAsGson( BatchTaggingRequest request ) throws IOException {
+        assertEquals(gson.toJson(request), new String(codec.toJsonBytes(request), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void plainRequestMatchesGson() throws IOException {
+        assertSameAsGson(request(EntityType.Node, entity("node-1", 42, "GCP|id", "1234", "GCP|zone", "us-central1-a")));
+    }
+
+    @Test
+    public void escapedValuesMatchGson() throws IOException {
+        assertSameAsGson(request(EntityType.Node, entity("node \"quoted\"", 1,
+                "GCP|description", "line one\nline two\ttabbed \\ backslash \"quotes\"",
+                "GCP|Metadata|html", "<script>alert('x') & more</script> = done",
+                "GCP|control", "\u0000\u0001\u001f\u007f \u2028\u2029")));
+    }
+
+    @Test
+    public void unicodeValuesMatchGson() throws IOException {
+        assertSameAsGson(request(EntityType.Tier, entity("tier-\u00fc", 7,
+                "GCP|Label|team", "\u00e9quipe-\u4e2d\u6587",
+                "GCP|Label|emoji", "\ud83d\ude80 rocket",
+                "GCP|Label|rtl", "\u05e9\u05dc\u05d5\u05dd")));
+    }
+
+    @Test
+    public void emptyAndNullValuesMatchGson() throws IOException {
+        assertSameAsGson(request(EntityType.Machine, entity("", 0, "GCP|description", "", "GCP|statusMessage", null, "", "empty key")));
+    }
+
+    @Test
+    public void emptyEntityListsMatchGson() throws IOException {
+        assertSameAsGson(request(EntityType.Node));
+        assertSameAsGson(request(EntityType.Node, entity("no-tags", 3)));
+    }
+
+    @Test
+    public void multipleEntitiesMatchGson() throws IOException {
+        assertSameAsGson(request(EntityType.Node, entity("a", 1, "k", "v1"), entity("b", 2, "k", "v2"), entity("c", 3)));
+    }
+
+    @Test
+    public void bufferReuseDoesNotLeakPreviousRequest() throws IOException {
+        BatchTaggingRequest large = request(EntityType.Node, entity("large", 1, "GCP|description", new String(new char[20000]).replace('\0', 'x')));
+        BatchTaggingRequest small = request(EntityType.Node, entity("small", 2, "k", "v"));
+        codec.toJsonBytes(large);
+        assertSameAsGson(small);
+    }
+
+    @Test
+    public void readsControllerAccessToken() throws IOException {
+        AccessToken token = TaggingJsonCodec.readAccessToken(new StringReader(
+                "{\"access_token\":\"eyJraWQiOiI5YjQ3.eyJpc3Mi.c2lnbmF0dXJl\",\"expires_in\":300,\"token_type\":\"bearer\",\"refresh_token\":null}"));
+        assertEquals("eyJraWQiOiI5YjQ3.eyJpc3Mi.c2lnbmF0dXJl", token.access_token);
+        assertEquals(300, token.expires_in);
+        assertEquals(0, token.expires_at);
+        assertEquals(1300000L, token.markIssued(1000000L).expires_at);
+    }
+
+    @Test
+    public void accessTokenErrorBodyHasNoToken() throws IOException {
+        AccessToken token = TaggingJsonCodec.readAccessToken(new StringReader(
+                "{\"error\":\"invalid_client\",\"error_description\":\"Client authentication failed\"}"));
+        assertNull(token.access_token);
+        assertTrue(token.isExpired(System.currentTimeMillis()));
+    }
+
+    @Test(expected = IOException.class)
+    public void accessTokenEmptyBodyFails() throws IOException {
+        TaggingJsonCodec.readAccessToken(new StringReader(""));
+    }
+
+    @Test
+    public void readsBatchResponseObject() throws IOException {
+        BatchResponse response = TaggingJsonCodec.readBatchResponse(new StringReader(
+                "{\"entityType\":\"APPLICATION_COMPONENT_NODE\",\"success\":{\"count\":2,\"entityIds\":[101,102]},"
+                        + "\"failure\":{\"count\":1,\"entityIds\":[103]},\"message\":null}"));
+        assertEquals("APPLICATION_COMPONENT_NODE", response.entityType);
+        assertEquals(2, response.success.count);
+        assertEquals(Arrays.asList(101L, 102L), response.success.entityIds);
+        assertEquals(1, response.failure.count);
+        assertEquals(Arrays.asList(103L), response.failure.entityIds);
+    }
+
+    @Test
+    public void foldsBatchResponseArrayFailures() throws IOException {
+        BatchResponse response = TaggingJsonCodec.readBatchResponse(new StringReader(
+                "[{\"entityType\":\"APPLICATION_COMPONENT_NODE\",\"success\":{\"count\":1,\"entityIds\":[1]},\"failure\":{\"count\":1,\"entityIds\":[2]}},"
+                        + "null,"
+                        + "{\"entityType\":\"APPLICATION_COMPONENT\",\"success\":{\"count\":0,\"entityIds\":[]},\"failure\":{\"count\":2,\"entityIds\":[3,4]}}]"));
+        assertEquals(3, response.failure.count);
+        assertEquals(Arrays.asList(2L, 3L, 4L), response.failure.entityIds);
+    }
+
+    @Test
+    public void emptyBatchResponseIsNull() throws IOException {
+        assertNull(TaggingJsonCodec.readBatchResponse(new StringReader("")));
+    }
+
+    @Test
+    public void batchResponseErrorBodyHasNoFailures() throws IOException {
+        BatchResponse response = TaggingJsonCodec.readBatchResponse(new StringReader(
+                "{\"statusCode\":400,\"message\":\"Invalid entity type\",\"developerMessage\":null}"));
+        assertNotNull(response);
+        assertNull(response.failure);
+        assertNull(response.success);
+    }
+
+    @Test(expected = IOException.class)
+    public void batchResponseHtmlErrorPageFails() throws IOException {
+        TaggingJsonCodec.readBatchResponse(new StringReader("<html><body><h1>HTTP Status 500 - Internal Server Error</h1></body></html>"));
+    }
+}